@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.healthservlet;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Keeps the bundles which are not active and not ignored up to date with the bundle events. The
+ * check is done without walking through all bundles.
+ */
+public class BundleStateTracker implements SynchronousBundleListener {
+
+    private final BundleContext context;
+    private final Set<String> ignore;
+    // symbolic names by bundle id, ordered like getBundles()
+    private final ConcurrentSkipListMap<Long, String> inactive = new ConcurrentSkipListMap<>();
+
+    public BundleStateTracker(BundleContext context, Set<String> ignore) {
+        this.context = context;
+        this.ignore = ignore;
+    }
+
+    /** Register the listener and read the current state of all bundles once. */
+    public void open() {
+        context.addBundleListener(this);
+        for (Bundle bundle : context.getBundles()) update(bundle);
+    }
+
+    public void close() {
+        context.removeBundleListener(this);
+        inactive.clear();
+    }
+
+    @Override
+    public void bundleChanged(BundleEvent event) {
+        update(event.getBundle());
+    }
+
+    // the state is read from the bundle, events of the same bundle can overtake each other
+    private void update(Bundle bundle) {
+        int state = bundle.getState();
+        if (state == Bundle.ACTIVE
+                || state == Bundle.UNINSTALLED
+                || ignore.contains(bundle.getSymbolicName())) inactive.remove(bundle.getBundleId());
+        else inactive.put(bundle.getBundleId(), String.valueOf(bundle.getSymbolicName()));
+    }
+
+    /** Return true if all not ignored bundles are active. */
+    public boolean isActive() {
+        return inactive.isEmpty();
+    }
+
+    /** Return the symbolic names of the not ignored bundles which are not active. */
+    public Collection<String> getInactive() {
+        return inactive.values();
+    }
+}
@@ -18,7 +18,7 @@ package de.mhus.osgi.healthservlet;
 import java.util.HashSet;
 import java.util.regex.Pattern;
 
-import de.mhus.osgi.healthservlet.HealthServlet.Config;
+import de.mhus.osgi.healthservlet.HealthEngine.Config;
 
 public class ConfigValues {
 
@@ -30,13 +30,19 @@ public class ConfigValues {
     public boolean logEnabled;
     public int logLevel;
     public HashSet<Pattern> logPatterns;
+    public LogPatternMatcher logMatcher;
     public boolean logResetFinding;
+    public int logQueueSize;
+    public LogEventQueue.Policy logQueuePolicy;
     public boolean checkEnabled;
+    public boolean checkAlertHealth;
     public HashSet<String> checkIgnore;
     public boolean checkCombineTagsWithOr;
     public boolean checkForceInstantExecution;
     public String checkOverrideGlobalTimeoutStr;
     public String checkTags;
+    public long snapshotInterval;
+    public long snapshotMaxAge;
 
     public ConfigValues(Config c) {
         waitAfterStart = c.waitAfterStart();
@@ -52,37 +58,20 @@ public class ConfigValues {
             } catch (Throwable t) {
             }
         }
+        logMatcher = new LogPatternMatcher(logPatterns);
         logResetFinding = c.logResetFinding();
+        logQueueSize = c.logQueueSize();
+        logQueuePolicy = c.logQueuePolicy();
         checkEnabled = c.checkEnabled();
+        checkAlertHealth = c.checkAlertHealth();
         checkIgnore = new HashSet<String>();
         for (String e : c.checkIgnore()) checkIgnore.add(e);
         checkCombineTagsWithOr = c.checkCombineTagsWithOr();
         checkForceInstantExecution = c.checkForceInstantExecution();
         checkOverrideGlobalTimeoutStr = c.checkOverrideGlobalTimeoutStr();
         checkTags = c.checkTags();
-    }
-
-    public ConfigValues(de.mhus.osgi.healthservlet.ReadyServlet.Config c) {
-        bundlesIgnore = new HashSet<>();
-        for (String e : c.bundlesIgnore()) bundlesIgnore.add(e);
-        bundlesEnabled = c.bundlesEnabled();
-        logEnabled = c.logEnabled();
-        logLevel = c.logLevel().toInt();
-        logPatterns = new HashSet<Pattern>();
-        for (String e : c.logPatterns()) {
-            try {
-                logPatterns.add(Pattern.compile(e, Pattern.DOTALL));
-            } catch (Throwable t) {
-            }
-        }
-        logResetFinding = c.logResetFinding();
-        checkEnabled = c.checkEnabled();
-        checkIgnore = new HashSet<String>();
-        for (String e : c.checkIgnore()) checkIgnore.add(e);
-        checkCombineTagsWithOr = c.checkCombineTagsWithOr();
-        checkForceInstantExecution = c.checkForceInstantExecution();
-        checkOverrideGlobalTimeoutStr = c.checkOverrideGlobalTimeoutStr();
-        checkTags = c.checkTags();
+        snapshotInterval = c.snapshotInterval();
+        snapshotMaxAge = c.snapshotMaxAge();
     }
 
     //
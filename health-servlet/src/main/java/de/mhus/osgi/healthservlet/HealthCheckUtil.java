@@ -17,6 +17,7 @@ package de.mhus.osgi.healthservlet;
 
 import java.io.PrintWriter;
 import java.util.Collection;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.apache.felix.hc.api.Result;
@@ -26,8 +27,6 @@ import org.apache.felix.hc.api.execution.HealthCheckExecutionOptions;
 import org.apache.felix.hc.api.execution.HealthCheckExecutionResult;
 import org.apache.felix.hc.api.execution.HealthCheckExecutor;
 import org.apache.felix.hc.api.execution.HealthCheckSelector;
-import org.osgi.framework.Bundle;
-import org.osgi.service.component.ComponentContext;
 
 public class HealthCheckUtil {
 
@@ -74,31 +73,29 @@ public class HealthCheckUtil {
         }
     }
 
-    public static boolean checkBundles(ComponentContext ctx, ConfigValues config, PrintWriter out) {
-        boolean healthy = true;
-        for (Bundle bundle : ctx.getBundleContext().getBundles()) {
-            if (bundle.getState() != Bundle.ACTIVE) {
-                if (config.bundlesIgnore.contains(bundle.getSymbolicName())) continue;
-                if (out != null) out.println("Bundle: " + bundle.getSymbolicName());
-                else return false;
-                healthy = false;
-            }
-        }
-        return healthy;
+    public static boolean checkBundles(BundleStateTracker bundles, PrintWriter out) {
+        if (bundles.isActive()) return true;
+        if (out != null) for (String name : bundles.getInactive()) out.println("Bundle: " + name);
+        return false;
     }
 
+    /**
+     * Execute the OSGi health checks and print the results.
+     *
+     * @param found The states of the not ignored results are added
+     * @return false if the checks could not be executed
+     */
     public static boolean checkOSGiHealthServices(
             HealthCheckExecutor healthCheckExecutor,
             ConfigValues config,
             PrintWriter out,
             Logger log,
-            Status... alertStatus) {
+            Set<Status> found) {
         if (healthCheckExecutor == null) {
             out.println("Error: healthCheckExecutor not present");
             return false;
         }
 
-        boolean healthy = true;
         HealthCheckExecutionOptions options = new HealthCheckExecutionOptions();
         options.setCombineTagsWithOr(config.checkCombineTagsWithOr);
         options.setForceInstantExecution(config.checkForceInstantExecution);
@@ -128,15 +125,14 @@ public class HealthCheckUtil {
                                     + entry.getLogLevel()
                                     + ","
                                     + entry.getMessage());
-                    Status s = entry.getStatus();
-                    for (Status alert : alertStatus) if (s == alert) healthy = false;
+                    found.add(entry.getStatus());
                 }
             } catch (Throwable t) {
                 log.throwing("", "", t);
             }
         }
 
-        return healthy;
+        return true;
     }
 
     private static boolean isNotBlank(String str) {
@@ -0,0 +1,395 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.healthservlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.hc.api.Result.Status;
+import org.apache.felix.hc.api.execution.HealthCheckExecutor;
+import org.apache.karaf.log.core.LogService;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import de.mhus.osgi.healthservlet.HealthSnapshot.View;
+
+/**
+ * Executes the checks once for the health and the ready servlet. The servlets are views of the
+ * same snapshot with a different set of alerting OSGi health check states.
+ */
+@Component(
+        service = HealthEngine.class,
+        immediate = true,
+        configurationPolicy = ConfigurationPolicy.OPTIONAL)
+@Designate(ocd = HealthEngine.Config.class)
+public class HealthEngine {
+
+    private static final Set<Status> LIVENESS_ALERTS =
+            EnumSet.of(Status.CRITICAL, Status.HEALTH_CHECK_ERROR);
+    private static final Set<Status> READINESS_ALERTS =
+            EnumSet.of(Status.CRITICAL, Status.HEALTH_CHECK_ERROR, Status.WARN);
+    // configurations of the servlets before the engine, they are not used any more
+    private static final String[] LEGACY_PIDS = {
+        "de.mhus.osgi.healthservlet.HealthServlet", "de.mhus.osgi.healthservlet.ReadyServlet"
+    };
+    private static Logger log = Logger.getLogger(HealthEngine.class.getCanonicalName());
+
+    private volatile long startChecking;
+    private volatile LogServiceTracker tracker;
+    private volatile BundleStateTracker bundles;
+    private volatile HealthEvaluator evaluator;
+    private volatile HealthCheckExecutor healthCheckExecutor;
+    private volatile ConfigurationAdmin configurationAdmin;
+    private volatile ConfigValues config;
+    // log findings of every view with the number of the last occurrence, kept until delivered
+    private final Map<View, Map<String, Long>> logFindings = new EnumMap<>(View.class);
+    private final AtomicLong occurrences = new AtomicLong();
+    // the state of the last evaluation, failures are logged only if the state changes
+    private boolean lastHealthy = true;
+    private boolean lastReady = true;
+
+    public HealthEngine() {
+        for (View view : View.values()) logFindings.put(view, new ConcurrentHashMap<>());
+    }
+
+    @ObjectClassDefinition(
+            name = "Health Engine",
+            description = "Health and readiness checks for Kubernetes")
+    public @interface Config {
+        @AttributeDefinition(name = "Wait after start", description = "ms before activation")
+        long waitAfterStart() default 60000;
+
+        @AttributeDefinition(
+                name = "Bundles ignore",
+                description = "List of Bundles to ignore (separate by comma)")
+        String[] bundlesIgnore() default {
+            "org.apache.karaf.features.extension",
+            "org.apache.aries.blueprint.core.compatibility",
+            "org.apache.karaf.shell.console",
+            "org.jline.terminal-jansi"
+        };
+
+        @AttributeDefinition(
+                name = "Enable bundle check",
+                description = "Validate if all bundles are active")
+        boolean bundlesEnabled() default true;
+
+        @AttributeDefinition(
+                name = "Enable log check",
+                description = "Introspect the own logs and alert for patterns")
+        boolean logEnabled() default true;
+
+        @AttributeDefinition(name = "Log level to check", description = "Minimum log level to scan")
+        HealthCheckUtil.LOG_LEVEL logLevel() default HealthCheckUtil.LOG_LEVEL.DEBUG;
+
+        @AttributeDefinition(name = "Log patterns", description = "List of patterns to watch for")
+        String[] logPatterns() default {".* java\\.lang\\.OutOfMemoryError:.*"};
+
+        @AttributeDefinition(name = "Reset Findings", description = "Reset findings after delivery")
+        boolean logResetFinding() default false;
+
+        @AttributeDefinition(
+                name = "Log queue size",
+                description = "Maximum count of log messages waiting to be scanned")
+        int logQueueSize() default 8192;
+
+        @AttributeDefinition(
+                name = "Log queue policy",
+                description = "If the queue is full DROP the message or SYNC scan it in the caller")
+        LogEventQueue.Policy logQueuePolicy() default LogEventQueue.Policy.DROP;
+
+        @AttributeDefinition(
+                name = "Enable OSGi Health Check",
+                description = "Enable checking of OSGi Health Check services")
+        boolean checkEnabled() default true;
+
+        @AttributeDefinition(
+                name = "OSGi Checks alert health",
+                description =
+                        "CRITICAL OSGi Health Checks fail the health servlet, Kubernetes restarts"
+                                + " the container")
+        boolean checkAlertHealth() default false;
+
+        @AttributeDefinition(
+                name = "Ignore OSGi Checks",
+                description = "List of OSGi Health Check services to ignore by name")
+        String[] checkIgnore() default {};
+
+        @AttributeDefinition(
+                name = "Combine tags with or",
+                description = "Combine tags with logical 'OR' instead of the default 'AND'")
+        boolean checkCombineTagsWithOr() default false;
+
+        @AttributeDefinition(
+                name = "Force Execution",
+                description = "Force instant execution (no cache, async checks are executed)")
+        boolean checkForceInstantExecution() default false;
+
+        @AttributeDefinition(name = "Override global timeout", description = "")
+        String checkOverrideGlobalTimeoutStr() default "";
+
+        @AttributeDefinition(
+                name = "Health Check tags (comma-separated)",
+                description =
+                        "Enter tags to selected health checks to be executed. Leave empty to execute default checks or use '*' to execute all checks. Prefix a tag with a minus sign (-) to omit checks having that tag (can be also used in combination with '*', e.g. '*,-excludedtag').")
+        String checkTags() default "*";
+
+        @AttributeDefinition(
+                name = "Snapshot interval",
+                description = "ms between background evaluations, 0 to evaluate every request")
+        long snapshotInterval() default 5000;
+
+        @AttributeDefinition(
+                name = "Snapshot max age",
+                description = "ms after that an old snapshot is evaluated with the request")
+        long snapshotMaxAge() default 30000;
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL)
+    public void setHealthCheckExecutor(HealthCheckExecutor healthCheckExecutor) {
+        log.info("Found healthCheckExecutor");
+        this.healthCheckExecutor = healthCheckExecutor;
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL)
+    public void setConfigurationAdmin(ConfigurationAdmin configurationAdmin) {
+        this.configurationAdmin = configurationAdmin;
+    }
+
+    @Activate
+    public void activate(ComponentContext ctx, Config c) {
+        checkLegacyConfig();
+        this.config = new ConfigValues(c);
+        startChecking = System.currentTimeMillis() + config.waitAfterStart;
+        open(ctx);
+    }
+
+    @Deactivate
+    public void deactivate(ComponentContext ctx) {
+        close();
+    }
+
+    @Modified
+    public void modified(ComponentContext ctx, Config c) {
+        close();
+        this.config = new ConfigValues(c);
+        open(ctx);
+    }
+
+    // the settings of a former configuration are lost if they are not moved to the engine
+    private void checkLegacyConfig() {
+        if (configurationAdmin == null) return;
+        for (String pid : LEGACY_PIDS) {
+            try {
+                Configuration[] list =
+                        configurationAdmin.listConfigurations("(service.pid=" + pid + ")");
+                if (list != null)
+                    log.warning(
+                            "Configuration "
+                                    + pid
+                                    + " is not used any more, move it to "
+                                    + HealthEngine.class.getCanonicalName());
+            } catch (IOException | InvalidSyntaxException e) {
+                log.fine("Can't list configuration " + pid + ": " + e);
+            }
+        }
+    }
+
+    private void open(ComponentContext ctx) {
+        if (config.logEnabled) {
+            tracker =
+                    new LogServiceTracker(
+                            ctx.getBundleContext(), LogService.class, null, config, this::found);
+            tracker.open();
+        }
+        if (config.bundlesEnabled) {
+            bundles = new BundleStateTracker(ctx.getBundleContext(), config.bundlesIgnore);
+            bundles.open();
+        }
+        evaluator =
+                new HealthEvaluator(
+                        "health-engine-evaluator",
+                        this::check,
+                        config.snapshotInterval,
+                        config.snapshotMaxAge);
+    }
+
+    // the closed evaluator answers requests until it's replaced
+    private void close() {
+        if (evaluator != null) evaluator.close();
+        if (tracker != null) tracker.close();
+        tracker = null;
+        if (bundles != null) bundles.close();
+        bundles = null;
+    }
+
+    /**
+     * Return the last snapshot.
+     *
+     * @param refresh Evaluate the checks now
+     */
+    public HealthSnapshot get(boolean refresh) {
+        return evaluator.get(refresh);
+    }
+
+    /**
+     * Send the last snapshot of the view. If findings are reset after delivery, the log findings
+     * of the snapshot are not reported to the view again, unless they occur again.
+     *
+     * @param view The view
+     * @param refresh Evaluate the checks now
+     * @param res The response
+     */
+    public void write(View view, boolean refresh, HttpServletResponse res) throws IOException {
+        HealthSnapshot snapshot = get(refresh);
+        snapshot.write(view, res);
+        if (!config.logResetFinding) return;
+        Map<String, Long> pending = logFindings.get(view);
+        for (Map.Entry<String, Long> entry : snapshot.getFindings(view).entrySet())
+            pending.remove(entry.getKey(), entry.getValue());
+    }
+
+    // executed by the log scanner
+    private void found(String pattern) {
+        long occurrence = occurrences.incrementAndGet();
+        for (Map<String, Long> findings : logFindings.values()) findings.put(pattern, occurrence);
+    }
+
+    // executed by the evaluator
+    private HealthSnapshot check() {
+        ConfigValues config = this.config;
+        LogServiceTracker tracker = this.tracker;
+        BundleStateTracker bundles = this.bundles;
+        StringWriter report = new StringWriter();
+        PrintWriter out = new PrintWriter(report);
+        long time = System.currentTimeMillis();
+        out.println("time: " + time + " " + new Date(time));
+
+        // the health view is not alerting until all bundles are active or the time is up
+        boolean wait = false;
+        if (time < startChecking) {
+            if (bundles != null && bundles.isActive()) startChecking = 0;
+            else wait = true;
+        }
+
+        boolean healthy = true;
+
+        // check if bundles are ok
+        if (bundles != null) {
+            if (!HealthCheckUtil.checkBundles(bundles, out)) healthy = false;
+        }
+        out.flush();
+        String head = report.toString();
+        report.getBuffer().setLength(0);
+
+        // check log, the findings are reported to every view until they are delivered to it
+        Map<View, Map<String, Long>> findings = new EnumMap<>(View.class);
+        for (View view : View.values()) {
+            Map<String, Long> pending = logFindings.get(view);
+            findings.put(
+                    view,
+                    tracker == null || pending.isEmpty()
+                            ? Collections.emptyMap()
+                            : Collections.unmodifiableMap(new TreeMap<>(pending)));
+        }
+        if (tracker != null) {
+            long dropped = tracker.getQueue().getDropped();
+            long sync = tracker.getQueue().getSynchronous();
+            if (dropped > 0) out.println("Log dropped: " + dropped);
+            if (sync > 0) out.println("Log scanned synchronous: " + sync);
+        }
+
+        // check felix health check, the alerting states are different for the views
+        Set<Status> found = EnumSet.noneOf(Status.class);
+        if (config.checkEnabled) {
+            HealthCheckUtil.checkOSGiHealthServices(healthCheckExecutor, config, out, log, found);
+        }
+        out.flush();
+        String tail = report.toString();
+
+        Map<String, Long> healthFindings = findings.get(View.HEALTH);
+        Map<String, Long> readyFindings = findings.get(View.READY);
+        // OSGi checks restart the container only if configured
+        boolean live =
+                healthy
+                        && healthFindings.isEmpty()
+                        && (!config.checkAlertHealth || isClean(found, LIVENESS_ALERTS));
+        boolean ready = healthy && readyFindings.isEmpty() && isClean(found, READINESS_ALERTS);
+        String liveReport = head + toReport(healthFindings) + tail;
+        String readyReport = head + toReport(readyFindings) + tail;
+        if (wait) {
+            live = true;
+            liveReport = "time: " + time + " " + new Date(time) + "\nwait: Wait after start\n";
+        }
+        if (live != lastHealthy) {
+            if (live) log.info("Health check ok");
+            else log.severe("Health check failed:\n" + liveReport);
+            lastHealthy = live;
+        }
+        if (ready != lastReady) {
+            if (ready) log.info("Ready check ok");
+            else log.severe("Ready check failed:\n" + readyReport);
+            lastReady = ready;
+        }
+        return new HealthSnapshot(
+                time,
+                live,
+                liveReport + status(live),
+                ready,
+                readyReport + status(ready),
+                findings);
+    }
+
+    private static String toReport(Map<String, Long> findings) {
+        StringBuilder out = new StringBuilder();
+        for (String finding : findings.keySet()) out.append("Log: ").append(finding).append('\n');
+        return out.toString();
+    }
+
+    private static boolean isClean(Set<Status> found, Set<Status> alerts) {
+        for (Status status : found) if (alerts.contains(status)) return false;
+        return true;
+    }
+
+    private static String status(boolean healthy) {
+        return healthy ? "status: ok\n" : "status: error\n";
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.healthservlet;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates the health in the background and holds the last snapshot. Requests are answered from
+ * the snapshot without executing the checks again.
+ */
+public class HealthEvaluator {
+
+    private static Logger log = Logger.getLogger(HealthEvaluator.class.getCanonicalName());
+
+    private final Supplier<HealthSnapshot> check;
+    private final long maxAge;
+    private final ScheduledExecutorService executor;
+    private final Object lock = new Object();
+    private volatile HealthSnapshot snapshot;
+
+    /**
+     * Create the evaluator and start the background evaluation.
+     *
+     * @param name Name of the thread
+     * @param check Executes the checks
+     * @param interval Milliseconds between two evaluations, 0 to evaluate with every request
+     * @param maxAge Older snapshots are evaluated again with the request
+     */
+    public HealthEvaluator(
+            String name, Supplier<HealthSnapshot> check, long interval, long maxAge) {
+        this.check = check;
+        this.maxAge = maxAge;
+        if (interval > 0) {
+            executor =
+                    Executors.newSingleThreadScheduledExecutor(
+                            r -> {
+                                Thread thread = new Thread(r, name);
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            executor.scheduleWithFixedDelay(
+                    () -> evaluate(snapshot), 0, interval, TimeUnit.MILLISECONDS);
+        } else executor = null;
+    }
+
+    /**
+     * Return the last snapshot. It's evaluated now if requested, the snapshot is too old or the
+     * background evaluation is disabled.
+     */
+    public HealthSnapshot get(boolean refresh) {
+        HealthSnapshot current = snapshot;
+        if (!refresh && executor != null && current != null && !current.isOlder(maxAge))
+            return current;
+        return evaluate(current);
+    }
+
+    // only one evaluation at a time, waiting callers get the result of the running one
+    private HealthSnapshot evaluate(HealthSnapshot seen) {
+        synchronized (lock) {
+            HealthSnapshot current = snapshot;
+            if (current != seen) return current;
+            try {
+                current = check.get();
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "health evaluation failed", e);
+                long time = System.currentTimeMillis();
+                String report =
+                        "time: " + time + " " + new Date(time) + "\nError: " + e
+                                + "\nstatus: error\n";
+                current = new HealthSnapshot(time, false, report, false, report);
+            }
+            snapshot = current;
+            return current;
+        }
+    }
+
+    /** Stop the background evaluation. */
+    public void close() {
+        if (executor != null) executor.shutdownNow();
+    }
+}
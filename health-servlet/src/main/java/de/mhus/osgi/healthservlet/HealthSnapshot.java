@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.healthservlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Immutable result of one health evaluation with the reports of the health and the ready view. The
+ * reports are prepared to be sent as they are.
+ */
+public class HealthSnapshot {
+
+    public enum View {
+        HEALTH,
+        READY
+    }
+
+    private final long time;
+    private final boolean[] healthy;
+    private final String[] reports;
+    private final byte[][] contents;
+    private final Map<View, Map<String, Long>> findings;
+
+    public HealthSnapshot(
+            long time, boolean health, String healthReport, boolean ready, String readyReport) {
+        this(time, health, healthReport, ready, readyReport, new EnumMap<>(View.class));
+    }
+
+    /**
+     * Create the snapshot.
+     *
+     * @param time Time of the evaluation
+     * @param health Result of the health view
+     * @param healthReport Report of the health view
+     * @param ready Result of the ready view
+     * @param readyReport Report of the ready view
+     * @param findings Reported log findings per view with the number of the last occurrence
+     */
+    public HealthSnapshot(
+            long time,
+            boolean health,
+            String healthReport,
+            boolean ready,
+            String readyReport,
+            Map<View, Map<String, Long>> findings) {
+        this.time = time;
+        this.findings = findings;
+        healthy = new boolean[] {health, ready};
+        reports = new String[] {healthReport, readyReport};
+        contents =
+                new byte[][] {
+                    healthReport.getBytes(StandardCharsets.UTF_8),
+                    readyReport.getBytes(StandardCharsets.UTF_8)
+                };
+    }
+
+    /** Return the time of the evaluation. */
+    public long getTime() {
+        return time;
+    }
+
+    public boolean isHealthy(View view) {
+        return healthy[view.ordinal()];
+    }
+
+    public String getReport(View view) {
+        return reports[view.ordinal()];
+    }
+
+    /** Return the reported log findings of the view with the number of the last occurrence. */
+    public Map<String, Long> getFindings(View view) {
+        Map<String, Long> res = findings.get(view);
+        return res == null ? Collections.emptyMap() : res;
+    }
+
+    /** Return true if the snapshot is older than maxAge milliseconds. */
+    public boolean isOlder(long maxAge) {
+        return System.currentTimeMillis() - time > maxAge;
+    }
+
+    /** Send status and report of the view. */
+    public void write(View view, HttpServletResponse res) throws IOException {
+        byte[] content = contents[view.ordinal()];
+        res.setStatus(isHealthy(view) ? 200 : 501);
+        res.setContentType("text/plain");
+        res.setCharacterEncoding("UTF-8");
+        res.setContentLength(content.length);
+        OutputStream out = res.getOutputStream();
+        out.write(content);
+        out.flush();
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.healthservlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock free ring buffer of log messages for many logging threads and one consumer thread.
+ * The consumer scans the messages, a logging thread only pays for the hand off. Every slot has a
+ * sequence telling if it's free for the producer of this round or filled for the consumer.
+ */
+public class LogEventQueue {
+
+    /** What to do with a message if the queue is full. */
+    public enum Policy {
+        /** Count and forget the message. */
+        DROP,
+        /** Scan the message in the logging thread. */
+        SYNC
+    }
+
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<String> buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final Policy policy;
+    private final Consumer<String> scanner;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder synchronous = new LongAdder();
+    private volatile Thread consumer;
+    private volatile boolean waiting;
+    private volatile boolean running;
+
+    /**
+     * Create the queue.
+     *
+     * @param capacity Maximum count of waiting messages, rounded up to a power of two
+     * @param policy What to do if the queue is full
+     * @param scanner Scans the messages, it's called by the consumer and in SYNC mode by the
+     *     logging threads
+     */
+    public LogEventQueue(int capacity, Policy policy, Consumer<String> scanner) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        buffer = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        mask = size - 1;
+        this.policy = policy;
+        this.scanner = scanner;
+    }
+
+    /** Start the consumer thread. */
+    public void start(String name) {
+        running = true;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        consumer = thread;
+        thread.start();
+    }
+
+    /** Stop the consumer thread, waiting messages are not scanned. */
+    public void stop() {
+        running = false;
+        Thread thread = consumer;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /** Hand over the message, if the queue is full the policy decides. */
+    public void add(String msg) {
+        if (offer(msg)) {
+            if (waiting) LockSupport.unpark(consumer);
+            return;
+        }
+        if (policy == Policy.SYNC) {
+            synchronous.increment();
+            scanner.accept(msg);
+        } else dropped.increment();
+    }
+
+    private boolean offer(String msg) {
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) pos & mask;
+            long diff = sequences.get(slot) - pos;
+            if (diff < 0) return false;
+            // the slot is free for this round if no other producer took it
+            if (diff == 0 && tail.compareAndSet(pos, pos + 1)) {
+                buffer.lazySet(slot, msg);
+                sequences.set(slot, pos + 1);
+                return true;
+            }
+        }
+    }
+
+    // executed only by the consumer thread
+    private String poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) return null;
+        String msg = buffer.get(slot);
+        buffer.lazySet(slot, null);
+        sequences.set(slot, head + mask + 1);
+        head++;
+        return msg;
+    }
+
+    private void run() {
+        while (running) {
+            String msg = poll();
+            if (msg == null) {
+                waiting = true;
+                // check again, a producer could have missed the flag
+                msg = poll();
+                if (msg == null) LockSupport.parkNanos(this, IDLE_WAIT);
+                waiting = false;
+                if (msg == null) continue;
+            }
+            try {
+                scanner.accept(msg);
+            } catch (RuntimeException e) {
+                // logging would be scanned again, the message is ignored
+            }
+        }
+    }
+
+    /** Return the count of messages dropped because the queue was full. */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Return the count of messages scanned by the logging thread because the queue was full. */
+    public long getSynchronous() {
+        return synchronous.sum();
+    }
+}
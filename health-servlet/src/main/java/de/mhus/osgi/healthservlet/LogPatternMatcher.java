@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.healthservlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import de.mhus.osgi.regexutil.LiteralMatcher;
+import de.mhus.osgi.regexutil.RegexText;
+
+/**
+ * Matches log messages against all log patterns. Patterns like '.*text.*' are checked as plain
+ * text, other patterns are only executed if the message contains their anchor, a text every match
+ * contains. The texts of all patterns are searched in one pass (Aho-Corasick), a message without
+ * finding is scanned without allocating memory. Texts and automaton are shared with the rewrite
+ * servlet in the regex-util bundle.
+ */
+public class LogPatternMatcher {
+
+    private static final int CONTAINS = 0;
+    private static final int PREFIX = 1;
+    private static final int SUFFIX = 2;
+    private static final int EQUALS = 3;
+    private static final int REGEX = 4;
+    // up to this count the texts are searched one by one with the intrinsic String.indexOf()
+    private static final int MAX_INDEX_OF = 8;
+
+    private final Pattern[] patterns;
+    private final int[] kinds;
+    private final String[] texts;
+    private final int[] unanchored;
+    private final int[][] patternsOf;
+    private final String[] literals;
+    private final LiteralMatcher matcher;
+
+    private final ThreadLocal<long[]> found;
+
+    public LogPatternMatcher(Collection<Pattern> list) {
+        patterns = list.toArray(new Pattern[list.size()]);
+        kinds = new int[patterns.length];
+        texts = new String[patterns.length];
+        Map<String, List<Integer>> literals = new LinkedHashMap<>();
+        List<Integer> always = new ArrayList<>();
+        for (int i = 0; i < patterns.length; i++) {
+            classify(i);
+            if (texts[i] == null) always.add(i);
+            else literals.computeIfAbsent(texts[i], k -> new ArrayList<>()).add(i);
+        }
+        unanchored = toArray(always);
+        patternsOf = new int[literals.size()][];
+        int n = 0;
+        for (List<Integer> value : literals.values()) patternsOf[n++] = toArray(value);
+        this.literals = literals.keySet().toArray(new String[literals.size()]);
+
+        matcher = new LiteralMatcher(this.literals);
+        int words = (patternsOf.length + 63) / 64;
+        found = ThreadLocal.withInitial(() -> new long[words]);
+    }
+
+    /**
+     * Scan the message.
+     *
+     * @param msg The log message
+     * @param findings Gets the matching patterns, a pattern only once per message
+     */
+    public void scan(String msg, Consumer<String> findings) {
+        if (msg == null) return;
+        for (int p : unanchored) {
+            if (patterns[p].matcher(msg).matches()) findings.accept(patterns[p].pattern());
+        }
+        if (literals.length <= MAX_INDEX_OF) {
+            for (int i = 0; i < literals.length; i++) {
+                if (msg.indexOf(literals[i]) < 0) continue;
+                for (int p : patternsOf[i]) {
+                    if (confirm(p, msg)) findings.accept(patterns[p].pattern());
+                }
+            }
+            return;
+        }
+        long[] seen = found.get();
+        Arrays.fill(seen, 0);
+        int missing = patternsOf.length;
+        int state = 0;
+        for (int i = 0; i < msg.length(); i++) {
+            state = matcher.next(state, msg.charAt(i));
+            int s = matcher.getOutput(state) >= 0 ? state : matcher.getDictionary(state);
+            for (; s > 0; s = matcher.getDictionary(s)) {
+                int literal = matcher.getOutput(s);
+                if ((seen[literal >>> 6] & 1L << literal) != 0) continue;
+                seen[literal >>> 6] |= 1L << literal;
+                for (int p : patternsOf[literal]) {
+                    if (confirm(p, msg)) findings.accept(patterns[p].pattern());
+                }
+                if (--missing == 0) return;
+            }
+        }
+    }
+
+    private boolean confirm(int p, String msg) {
+        switch (kinds[p]) {
+            case CONTAINS:
+                return true;
+            case PREFIX:
+                return msg.startsWith(texts[p]);
+            case SUFFIX:
+                return msg.endsWith(texts[p]);
+            case EQUALS:
+                return msg.equals(texts[p]);
+            default:
+                return patterns[p].matcher(msg).matches();
+        }
+    }
+
+    // '.*' matches everything only in DOTALL mode, the patterns are compiled with it
+    private void classify(int i) {
+        Pattern pattern = patterns[i];
+        kinds[i] = REGEX;
+        if ((pattern.flags() & ~Pattern.DOTALL) != 0) return;
+        String regex = pattern.pattern();
+        if (pattern.flags() == Pattern.DOTALL) {
+            boolean any = regex.startsWith(".*");
+            boolean anyEnd = regex.endsWith(".*") && !isEscaped(regex, regex.length() - 2);
+            int start = any ? 2 : 0;
+            int end = Math.max(start, anyEnd ? regex.length() - 2 : regex.length());
+            String literal = RegexText.toLiteral(regex.substring(start, end));
+            if (literal != null) {
+                kinds[i] = any && anyEnd ? CONTAINS : any ? SUFFIX : anyEnd ? PREFIX : EQUALS;
+                texts[i] = literal;
+                return;
+            }
+        }
+        // null for escapes the anchor does not understand, the pattern is always executed then
+        texts[i] = RegexText.toAnchor(regex);
+    }
+
+    private static boolean isEscaped(String regex, int pos) {
+        int count = 0;
+        while (pos > 0 && regex.charAt(pos - 1) == '\\') {
+            count++;
+            pos--;
+        }
+        return count % 2 == 1;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] res = new int[list.size()];
+        for (int i = 0; i < res.length; i++) res[i] = list.get(i);
+        return res;
+    }
+}
@@ -15,10 +15,7 @@
  */
 package de.mhus.osgi.healthservlet;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
 
 import org.apache.karaf.log.core.LogService;
 import org.ops4j.pax.logging.spi.PaxAppender;
@@ -38,16 +35,34 @@ public class LogServiceTracker extends ServiceTracker<LogService, LogService> {
 
     private ConfigValues config;
 
-    Set<String> logFindings = Collections.synchronizedSet(new HashSet<>());
+    private final LogEventQueue queue;
 
     public LogServiceTracker(
             BundleContext context,
             Class<LogService> clazz,
             ServiceTrackerCustomizer<LogService, LogService> customizer,
-            ConfigValues config) {
+            ConfigValues config,
+            Consumer<String> findings) {
         super(context, clazz, customizer);
         this.config = config;
         this.appender = event -> printEvent(event);
+        this.queue =
+                new LogEventQueue(
+                        config.logQueueSize,
+                        config.logQueuePolicy,
+                        msg -> config.logMatcher.scan(msg, findings));
+    }
+
+    @Override
+    public void open() {
+        queue.start("health-log-scanner");
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        queue.stop();
     }
 
     @Override
@@ -68,16 +83,13 @@ public class LogServiceTracker extends ServiceTracker<LogService, LogService> {
         // stopTail();
     }
 
+    // executed by the logging thread, the message is scanned by the queue consumer
     private void printEvent(PaxLoggingEvent event) {
-        // scan log
         try {
             if (event != null) {
                 int sl = event.getLevel().getSyslogEquivalent();
                 if (sl > config.logLevel) return;
-                String msg = event.getMessage();
-                for (Pattern pattern : config.logPatterns) {
-                    if (pattern.matcher(msg).matches()) logFindings.add(pattern.pattern());
-                }
+                queue.add(event.getMessage());
             }
         } catch (NoClassDefFoundError e) {
             // KARAF-3350: Ignore NoClassDefFoundError exceptions
@@ -85,4 +97,8 @@ public class LogServiceTracker extends ServiceTracker<LogService, LogService> {
             // bundle has been refreshed somehow.
         }
     }
+
+    public LogEventQueue getQueue() {
+        return queue;
+    }
 }
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.healthservlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class LogPatternMatcherTest {
+
+    private static List<String> scan(LogPatternMatcher matcher, String msg) {
+        List<String> res = new ArrayList<>();
+        matcher.scan(msg, res::add);
+        return res;
+    }
+
+    private static List<String> expected(List<Pattern> patterns, String msg) {
+        List<String> res = new ArrayList<>();
+        for (Pattern pattern : patterns)
+            if (pattern.matcher(msg).matches()) res.add(pattern.pattern());
+        return res;
+    }
+
+    private static List<Pattern> compile(String... regex) {
+        List<Pattern> res = new ArrayList<>();
+        for (String r : regex) res.add(Pattern.compile(r, Pattern.DOTALL));
+        return res;
+    }
+
+    @Test
+    public void testKinds() {
+        List<Pattern> patterns =
+                compile(".*OutOfMemory.*", "Error.*", ".*failed", "stopped", ".*Out\\x4ffMemory.*");
+        LogPatternMatcher matcher = new LogPatternMatcher(patterns);
+        for (String msg :
+                new String[] {
+                    "java.lang.OutOfMemoryError: heap",
+                    "Error: start failed",
+                    "stopped",
+                    "stopped\n",
+                    "Out of memory"
+                }) {
+            List<String> found = scan(matcher, msg);
+            found.sort(null);
+            List<String> exp = expected(patterns, msg);
+            exp.sort(null);
+            assertEquals(exp, found, msg);
+        }
+        assertEquals(
+                Arrays.asList(".*OutOfMemory.*", ".*Out\\x4ffMemory.*"),
+                scan(matcher, "java.lang.OutOfMemoryError: heap"));
+    }
+
+    // the findings of the prefilter must be the same as executing every pattern
+    @Test
+    public void testRandomPatterns() {
+        String[] tokens = {
+            "a", "b", "O", "Error", "\\x41", "\\x{42}", "\\u0043", "\\0101", "\\cA", "\\d", "\\w",
+            "\\b", "\\.", "\\Qa.b\\E", "[ab]", "(a)", "(?:ab)", "\\1", "\\p{L}", "?", "*", "+",
+            "{2}", ".", "|", ".*", "\\n"
+        };
+        String[] chars = {"a", "b", "A", "B", "C", "O", "1", "Error", ".", "\n", "\u0001"};
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            // a few patterns are searched with indexOf(), more with the automaton
+            int count = i % 2 == 0 ? 3 : 20;
+            List<Pattern> patterns = new ArrayList<>();
+            while (patterns.size() < count) {
+                StringBuilder regex = new StringBuilder();
+                if (random.nextBoolean()) regex.append(".*");
+                for (int j = random.nextInt(4); j >= 0; j--)
+                    regex.append(tokens[random.nextInt(tokens.length)]);
+                if (random.nextBoolean()) regex.append(".*");
+                try {
+                    patterns.add(Pattern.compile(regex.toString(), Pattern.DOTALL));
+                } catch (IllegalArgumentException e) {
+                    // invalid random pattern
+                }
+            }
+            LogPatternMatcher matcher = new LogPatternMatcher(patterns);
+            for (int k = 0; k < 50; k++) {
+                StringBuilder msg = new StringBuilder();
+                for (int j = random.nextInt(12); j > 0; j--)
+                    msg.append(chars[random.nextInt(chars.length)]);
+                String content = msg.toString();
+                List<String> found = scan(matcher, content);
+                found.sort(null);
+                List<String> exp = expected(patterns, content);
+                exp.sort(null);
+                assertEquals(exp, found, patterns + " " + content);
+            }
+        }
+    }
+}
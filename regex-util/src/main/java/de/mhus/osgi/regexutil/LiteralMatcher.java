@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.regexutil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton to find a set of literals in one pass over the content. The state 0 is
+ * the start state.
+ */
+public class LiteralMatcher {
+
+    private final String[] literals;
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] fail;
+    private final int[] output;
+    private final int[] dictionary;
+    private final int maxLength;
+
+    public LiteralMatcher(String[] literals) {
+        this.literals = literals.clone();
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> out = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        out.add(-1);
+        int max = 0;
+        for (int i = 0; i < literals.length; i++) {
+            String literal = literals[i];
+            if (literal.isEmpty()) throw new IllegalArgumentException("empty literal");
+            max = Math.max(max, literal.length());
+            int state = 0;
+            for (int j = 0; j < literal.length(); j++) {
+                Integer next = trie.get(state).get(literal.charAt(j));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    out.add(-1);
+                    trie.get(state).put(literal.charAt(j), next);
+                }
+                state = next;
+            }
+            if (out.get(state) < 0) out.set(state, i);
+        }
+        maxLength = max;
+
+        int size = trie.size();
+        keys = new char[size][];
+        targets = new int[size][];
+        output = new int[size];
+        for (int i = 0; i < size; i++) {
+            Map<Character, Integer> map = trie.get(i);
+            keys[i] = new char[map.size()];
+            targets[i] = new int[map.size()];
+            int j = 0;
+            for (Map.Entry<Character, Integer> entry : map.entrySet()) {
+                keys[i][j] = entry.getKey();
+                targets[i][j] = entry.getValue();
+                j++;
+            }
+            output[i] = out.get(i);
+        }
+
+        // breadth first to set the failure links, the parent is always done before the child
+        fail = new int[size];
+        dictionary = new int[size];
+        dictionary[0] = -1;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[0]) {
+            fail[child] = 0;
+            dictionary[child] = -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int j = 0; j < keys[state].length; j++) {
+                int child = targets[state][j];
+                fail[child] = next(fail[state], keys[state][j]);
+                int f = fail[child];
+                dictionary[child] = output[f] >= 0 ? f : dictionary[f];
+                queue.add(child);
+            }
+        }
+    }
+
+    /** Return the state after reading the character. */
+    public int next(int state, char c) {
+        while (true) {
+            char[] k = keys[state];
+            // most nodes have only a few children, the root is the exception
+            int lo = 0;
+            int hi = k.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char m = k[mid];
+                if (m < c) lo = mid + 1;
+                else if (m > c) hi = mid - 1;
+                else return targets[state][mid];
+            }
+            if (state == 0) return 0;
+            state = fail[state];
+        }
+    }
+
+    /** Return the index of the literal ending in this state or -1. */
+    public int getOutput(int state) {
+        return output[state];
+    }
+
+    /**
+     * Return the next state on the failure chain with an output or -1. The literals of these
+     * states are suffixes of the current one and are also found at the current position.
+     */
+    public int getDictionary(int state) {
+        return dictionary[state];
+    }
+
+    public int getLength(int literal) {
+        return literals[literal].length();
+    }
+
+    public String getLiteral(int literal) {
+        return literals[literal];
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public int size() {
+        return literals.length;
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.regexutil;
+
+/**
+ * Reads plain text out of regular expressions. The methods do not know about flags, the caller
+ * has to check if the flags of the pattern change the meaning of the text.
+ */
+public class RegexText {
+
+    private RegexText() {}
+
+    /**
+     * Return the text all matches of the regex start with. The prefix is empty if the regex is
+     * null or the start is not plain text.
+     */
+    public static String toPrefix(String regex) {
+        if (regex == null) return "";
+        StringBuilder out = new StringBuilder();
+        int pos = regex.startsWith("^") ? 1 : 0;
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '\\') {
+                if (pos + 1 >= regex.length()) break;
+                char n = regex.charAt(pos + 1);
+                if (n == 'Q') {
+                    int end = regex.indexOf("\\E", pos + 2);
+                    if (end < 0) end = regex.length();
+                    out.append(regex, pos + 2, end);
+                    pos = end + 2;
+                    continue;
+                }
+                if (Character.isLetterOrDigit(n)) break;
+                out.append(n);
+                pos += 2;
+                continue;
+            }
+            if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+                // a quantifier can remove the last character
+                if ((c == '?' || c == '*' || c == '{') && out.length() > 0)
+                    out.setLength(out.length() - 1);
+                break;
+            }
+            out.append(c);
+            pos++;
+        }
+        if (out.length() == 0 || hasAlternative(regex)) return "";
+        return out.toString();
+    }
+
+    // return true if the regex contains an alternative outside of groups
+    private static boolean hasAlternative(String regex) {
+        int depth = 0;
+        int classDepth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0) return false;
+                    i = end + 1;
+                } else i++;
+            } else if (c == '[') {
+                classDepth++;
+                // a bracket at the start is part of the class
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') i++;
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') i++;
+            } else if (classDepth > 0) {
+                if (c == ']') classDepth--;
+            } else if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (c == '|' && depth == 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the longest plain text every match of the regex contains or null. Text in groups,
+     * classes and characters followed by an optional quantifier is not used.
+     */
+    public static String toAnchor(String regex) {
+        if (hasAlternative(regex)) return null;
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int pos = 0;
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '\\') {
+                if (pos + 1 >= regex.length()) return null;
+                char n = regex.charAt(pos + 1);
+                if (n == 'Q') {
+                    int end = regex.indexOf("\\E", pos + 2);
+                    if (end < 0) end = regex.length();
+                    if (depth == 0) run.append(regex, pos + 2, end);
+                    pos = end + 2;
+                } else if (Character.isLetterOrDigit(n)) {
+                    // classes, boundaries, references and character codes are not used
+                    int end = escapeEnd(regex, pos);
+                    if (end < 0) return null;
+                    best = longer(best, run);
+                    pos = end;
+                } else {
+                    if (depth == 0) run.append(n);
+                    pos += 2;
+                }
+                continue;
+            }
+            if (c == '[') {
+                best = longer(best, run);
+                pos = skipClass(regex, pos);
+                continue;
+            }
+            if (c == '(') {
+                // inline flags change the meaning of the following text
+                if (pos + 2 < regex.length()
+                        && regex.charAt(pos + 1) == '?'
+                        && (Character.isLetter(regex.charAt(pos + 2))
+                                || regex.charAt(pos + 2) == '-')) return null;
+                best = longer(best, run);
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '?' || c == '*' || c == '{') {
+                // the last character is optional
+                if (run.length() > 0) run.setLength(run.length() - 1);
+                best = longer(best, run);
+                if (c == '{') {
+                    int end = regex.indexOf('}', pos);
+                    if (end < 0) return null;
+                    pos = end;
+                }
+            } else if ("^$.+".indexOf(c) >= 0) {
+                best = longer(best, run);
+            } else if (depth == 0) {
+                run.append(c);
+            }
+            pos++;
+        }
+        best = longer(best, run);
+        return best.isEmpty() ? null : best;
+    }
+
+    private static String longer(String best, StringBuilder run) {
+        if (run.length() > best.length()) best = run.toString();
+        run.setLength(0);
+        return best;
+    }
+
+    /**
+     * Return the position after the escape of a letter or digit starting with the backslash at pos
+     * or -1 if the escape is unknown.
+     */
+    private static int escapeEnd(String regex, int pos) {
+        int len = regex.length();
+        int p = pos + 2;
+        switch (regex.charAt(pos + 1)) {
+            case 'x':
+                if (p < len && regex.charAt(p) == '{') return closing(regex, p, '}');
+                return p + 2 <= len ? p + 2 : -1;
+            case 'u':
+                return p + 4 <= len ? p + 4 : -1;
+            case '0':
+                // up to three octal digits
+                for (int i = 0; i < 3 && p < len && isOctal(regex.charAt(p)); i++) p++;
+                return p;
+            case 'c':
+                return p < len ? p + 1 : -1;
+            case 'p':
+            case 'P':
+                if (p < len && regex.charAt(p) == '{') return closing(regex, p, '}');
+                return p < len ? p + 1 : -1;
+            case 'N':
+                return p < len && regex.charAt(p) == '{' ? closing(regex, p, '}') : -1;
+            case 'k':
+                return p < len && regex.charAt(p) == '<' ? closing(regex, p, '>') : -1;
+            case 'b':
+                // grapheme cluster boundary
+                return p < len && regex.charAt(p) == '{' ? closing(regex, p, '}') : p;
+            case 'd':
+            case 'D':
+            case 's':
+            case 'S':
+            case 'w':
+            case 'W':
+            case 'h':
+            case 'H':
+            case 'v':
+            case 'V':
+            case 'R':
+            case 'X':
+            case 'B':
+            case 'A':
+            case 'G':
+            case 'Z':
+            case 'z':
+            case 't':
+            case 'n':
+            case 'r':
+            case 'f':
+            case 'a':
+            case 'e':
+                return p;
+            default:
+                char c = regex.charAt(pos + 1);
+                if (c < '1' || c > '9') return -1;
+                // back reference, more digits are used if the group exists
+                while (p < len && regex.charAt(p) >= '0' && regex.charAt(p) <= '9') p++;
+                return p;
+        }
+    }
+
+    private static boolean isOctal(char c) {
+        return c >= '0' && c <= '7';
+    }
+
+    private static int closing(String regex, int pos, char c) {
+        int end = regex.indexOf(c, pos);
+        return end < 0 ? -1 : end + 1;
+    }
+
+    // return the position after the character class starting at pos
+    private static int skipClass(String regex, int pos) {
+        int depth = 0;
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '\\') {
+                if (pos + 1 < regex.length() && regex.charAt(pos + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", pos + 2);
+                    if (end < 0) return regex.length();
+                    pos = end + 2;
+                } else pos += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+                // a bracket at the start is part of the class
+                if (pos + 1 < regex.length() && regex.charAt(pos + 1) == '^') pos++;
+                if (pos + 1 < regex.length() && regex.charAt(pos + 1) == ']') pos++;
+            } else if (c == ']' && --depth == 0) return pos + 1;
+            pos++;
+        }
+        return pos;
+    }
+
+    /** Return the text if the regex is matching a plain text only, otherwise null. */
+    public static String toLiteral(String regex) {
+        StringBuilder out = new StringBuilder();
+        int pos = 0;
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '\\') {
+                if (pos + 1 >= regex.length()) return null;
+                char n = regex.charAt(pos + 1);
+                if (n == 'Q') {
+                    int end = regex.indexOf("\\E", pos + 2);
+                    if (end < 0) end = regex.length();
+                    out.append(regex, pos + 2, end);
+                    pos = end + 2;
+                    continue;
+                }
+                // escaped letters and digits are classes or references
+                if (Character.isLetterOrDigit(n)) return null;
+                out.append(n);
+                pos += 2;
+                continue;
+            }
+            if ("^$.|?*+()[]{}".indexOf(c) >= 0) return null;
+            out.append(c);
+            pos++;
+        }
+        return out.length() == 0 ? null : out.toString();
+    }
+}
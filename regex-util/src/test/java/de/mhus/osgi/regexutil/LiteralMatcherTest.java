@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.regexutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+public class LiteralMatcherTest {
+
+    // every literal ending at a position is found, also literals inside of other literals
+    @Test
+    public void testRandomLiterals() {
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            Set<String> set = new TreeSet<>();
+            for (int j = 1 + random.nextInt(20); j > 0; j--) set.add(random(random, 1, 4));
+            String[] literals = set.toArray(new String[set.size()]);
+            LiteralMatcher matcher = new LiteralMatcher(literals);
+            String text = random(random, 0, 40);
+            int state = 0;
+            for (int pos = 0; pos < text.length(); pos++) {
+                state = matcher.next(state, text.charAt(pos));
+                Set<String> found = new TreeSet<>();
+                int s = matcher.getOutput(state) >= 0 ? state : matcher.getDictionary(state);
+                for (; s > 0; s = matcher.getDictionary(s))
+                    found.add(matcher.getLiteral(matcher.getOutput(s)));
+                Set<String> expected = new TreeSet<>();
+                for (String literal : literals)
+                    if (text.startsWith(literal, pos + 1 - literal.length())) expected.add(literal);
+                assertEquals(expected, found, text + " " + pos);
+            }
+        }
+    }
+
+    private static String random(Random random, int min, int max) {
+        StringBuilder out = new StringBuilder();
+        for (int i = min + random.nextInt(max - min + 1); i > 0; i--)
+            out.append((char) ('a' + random.nextInt(3)));
+        return out.toString();
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.regexutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+// the patterns are tested with the rules in RewriteRuleTest of the rewrite servlet
+public class RegexTextTest {
+
+    // a character code is not part of the text and unknown escapes return no text
+    @Test
+    public void testAnchorEscapes() {
+        assertEquals("fMemory", RegexText.toAnchor(".*Out\\x4ffMemory.*"));
+        assertNull(RegexText.toAnchor("abc\\y"));
+        assertNull(RegexText.toLiteral("Out\\x4ffMemory"));
+        assertEquals("a.b", RegexText.toLiteral("a\\.b"));
+    }
+}
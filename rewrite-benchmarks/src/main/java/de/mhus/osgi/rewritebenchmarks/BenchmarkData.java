@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewritebenchmarks;
+
+import java.util.Properties;
+import java.util.Random;
+
+/** Content and rules of the benchmarks. */
+public class BenchmarkData {
+
+    public static final String CONFIG = "bench";
+
+    /**
+     * Create rules for the configuration 'bench'. Even rules replace a host name (plain text),
+     * odd rules rewrite a link with a group reference (regex). All rules are limited to text
+     * content.
+     */
+    public static Properties rules(int count, boolean streaming) {
+        Properties props = new Properties();
+        props.setProperty(CONFIG + ".servlet", "/bench");
+        props.setProperty(CONFIG + ".streaming", String.valueOf(streaming));
+        for (int i = 0; i < count; i++) {
+            String prefix = CONFIG + i;
+            if (i % 2 == 0) {
+                props.setProperty(prefix + ".rule", "backend" + i + ".local:8080");
+                props.setProperty(prefix + ".replace", "www" + i + ".example.com");
+            } else {
+                props.setProperty(prefix + ".rule", "href=\"/app" + i + "/([a-z]+)\"");
+                props.setProperty(prefix + ".replace", "href=\"/static" + i + "/$1\"");
+            }
+            props.setProperty(prefix + ".contentType", "text/.*");
+        }
+        return props;
+    }
+
+    /** Create html content with matches for the rules, the content is the same for every call. */
+    public static String html(int size, int ruleCount) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder(size + 256);
+        sb.append("<html><head><title>Benchmark</title></head><body>\n");
+        int line = 0;
+        while (sb.length() < size) {
+            int rule = ruleCount == 0 ? 0 : line % Math.max(1, ruleCount);
+            sb.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit ");
+            sb.append(random.nextInt(100000));
+            if (rule % 2 == 0)
+                sb.append(" <img src=\"http://backend").append(rule).append(".local:8080/i.png\">");
+            else sb.append(" <a href=\"/app").append(rule).append("/page\">link</a>");
+            sb.append("</p>\n");
+            line++;
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+}
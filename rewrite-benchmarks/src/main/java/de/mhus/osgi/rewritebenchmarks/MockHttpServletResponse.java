@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewritebenchmarks;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/** Response counting the written bytes, headers are stored without order. */
+public class MockHttpServletResponse implements HttpServletResponse {
+
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final CountingOutputStream out = new CountingOutputStream();
+    private PrintWriter writer;
+    private String contentType;
+    private String characterEncoding = "ISO-8859-1";
+    private long contentLength = -1;
+    private int status = SC_OK;
+
+    /** Return the count of bytes written to the response. */
+    public long getWritten() {
+        if (writer != null) writer.flush();
+        return out.count;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    // the content is not stored, only counted
+    private static class CountingOutputStream extends ServletOutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {}
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null)
+            writer = new PrintWriter(new OutputStreamWriter(out, characterEncoding));
+        return writer;
+    }
+
+    @Override
+    public void setCharacterEncoding(String arg0) {
+        characterEncoding = arg0;
+    }
+
+    @Override
+    public void setContentLength(int arg0) {
+        contentLength = arg0;
+    }
+
+    @Override
+    public void setContentLengthLong(long arg0) {
+        contentLength = arg0;
+    }
+
+    @Override
+    public void setContentType(String arg0) {
+        contentType = arg0;
+    }
+
+    @Override
+    public void setBufferSize(int arg0) {}
+
+    @Override
+    public int getBufferSize() {
+        return 8192;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) writer.flush();
+    }
+
+    @Override
+    public void resetBuffer() {}
+
+    @Override
+    public boolean isCommitted() {
+        return false;
+    }
+
+    @Override
+    public void reset() {}
+
+    @Override
+    public void setLocale(Locale arg0) {}
+
+    @Override
+    public Locale getLocale() {
+        return Locale.US;
+    }
+
+    @Override
+    public void addCookie(Cookie arg0) {}
+
+    @Override
+    public boolean containsHeader(String arg0) {
+        return headers.containsKey(arg0);
+    }
+
+    @Override
+    public String encodeURL(String arg0) {
+        return arg0;
+    }
+
+    @Override
+    public String encodeRedirectURL(String arg0) {
+        return arg0;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public String encodeUrl(String arg0) {
+        return arg0;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public String encodeRedirectUrl(String arg0) {
+        return arg0;
+    }
+
+    @Override
+    public void sendError(int arg0, String arg1) throws IOException {
+        status = arg0;
+    }
+
+    @Override
+    public void sendError(int arg0) throws IOException {
+        status = arg0;
+    }
+
+    @Override
+    public void sendRedirect(String arg0) throws IOException {
+        status = SC_FOUND;
+    }
+
+    @Override
+    public void setDateHeader(String arg0, long arg1) {}
+
+    @Override
+    public void addDateHeader(String arg0, long arg1) {}
+
+    @Override
+    public void setHeader(String arg0, String arg1) {
+        headers.put(arg0, arg1);
+    }
+
+    @Override
+    public void addHeader(String arg0, String arg1) {
+        headers.put(arg0, arg1);
+    }
+
+    @Override
+    public void setIntHeader(String arg0, int arg1) {
+        headers.put(arg0, String.valueOf(arg1));
+    }
+
+    @Override
+    public void addIntHeader(String arg0, int arg1) {
+        headers.put(arg0, String.valueOf(arg1));
+    }
+
+    @Override
+    public void setStatus(int arg0) {
+        status = arg0;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void setStatus(int arg0, String arg1) {
+        status = arg0;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public String getHeader(String arg0) {
+        return headers.get(arg0);
+    }
+
+    @Override
+    public Collection<String> getHeaders(String arg0) {
+        String value = headers.get(arg0);
+        return value == null ? Collections.<String>emptyList() : Collections.singletonList(value);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return headers.keySet();
+    }
+}
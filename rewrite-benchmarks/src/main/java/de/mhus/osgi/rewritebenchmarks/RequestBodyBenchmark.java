@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewritebenchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mhus.osgi.rewriteservlet.DispatchedHttpServletRequest;
+
+/** Read the request body through the dispatched request, with and without debug capture. */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBodyBenchmark {
+
+    @Param({"1024", "102400", "10485760"})
+    public int bodySize;
+
+    @Param({"0", "65536"})
+    public int captureLimit;
+
+    private byte[] body;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setup() {
+        body = new byte[bodySize];
+        new Random(bodySize).nextBytes(body);
+    }
+
+    @Benchmark
+    public long readBody() throws IOException {
+        MockHttpServletRequest req =
+                new MockHttpServletRequest("POST", "/upload", "application/octet-stream", body);
+        DispatchedHttpServletRequest dispatched =
+                new DispatchedHttpServletRequest("/upload", req, captureLimit);
+        long count = 0;
+        InputStream is = dispatched.getInputStream();
+        int n;
+        while ((n = is.read(buffer)) >= 0) count += n;
+        return count;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewritebenchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mhus.osgi.rewriteservlet.RewriteCall;
+import de.mhus.osgi.rewriteservlet.RewriteConfig;
+import de.mhus.osgi.rewriteservlet.RewriteConfiguration;
+
+/**
+ * A complete delegated call: the servlet writes the content into the dispatched response, the
+ * content is captured or streamed, rewritten and written to the original response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseCaptureBenchmark {
+
+    @Param({"1024", "102400", "10485760"})
+    public int bodySize;
+
+    @Param({"0", "10"})
+    public int ruleCount;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private RewriteConfig config;
+    private ContentServlet servlet;
+
+    @Setup
+    public void setup() {
+        config =
+                new RewriteConfiguration(BenchmarkData.rules(ruleCount, streaming))
+                        .getConfig(BenchmarkData.CONFIG);
+        servlet =
+                new ContentServlet(
+                        BenchmarkData.html(bodySize, ruleCount).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public long call() throws Exception {
+        MockHttpServletRequest req =
+                new MockHttpServletRequest("GET", "/index.html", null, new byte[0]);
+        MockHttpServletResponse res = new MockHttpServletResponse();
+        new RewriteCall(config, "/index.html", "bench", req, res).execute(servlet);
+        return res.getWritten();
+    }
+
+    // write the content in blocks like a typical servlet
+    private static class ContentServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+        private final byte[] content;
+
+        ContentServlet(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse res)
+                throws IOException {
+            res.setContentType("text/html; charset=UTF-8");
+            OutputStream out = res.getOutputStream();
+            for (int pos = 0; pos < content.length; pos += 8192)
+                out.write(content, pos, Math.min(8192, content.length - pos));
+        }
+    }
+}
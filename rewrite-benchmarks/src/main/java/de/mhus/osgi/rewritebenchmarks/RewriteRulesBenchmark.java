@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewritebenchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mhus.osgi.rewriteservlet.RewriteConfig;
+import de.mhus.osgi.rewriteservlet.RewriteConfiguration;
+import de.mhus.osgi.rewriteservlet.RewriteStage;
+import de.mhus.osgi.rewriteservlet.RewriteWriter;
+
+/** Rule selection and execution without the servlet wrappers. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RewriteRulesBenchmark {
+
+    @Param({"1024", "102400", "10485760"})
+    public int bodySize;
+
+    @Param({"1", "10", "100"})
+    public int ruleCount;
+
+    @Param({"text/html", "image/png"})
+    public String contentType;
+
+    private RewriteConfig config;
+    private String content;
+
+    @Setup
+    public void setup() {
+        config =
+                new RewriteConfiguration(BenchmarkData.rules(ruleCount, false))
+                        .getConfig(BenchmarkData.CONFIG);
+        content = BenchmarkData.html(bodySize, ruleCount);
+    }
+
+    @Benchmark
+    public String rewrite() {
+        return config.getPlan("/index.html", contentType).rewrite(content);
+    }
+
+    @Benchmark
+    public long rewriteStreaming() throws IOException {
+        List<RewriteStage> stages = config.getStages("/index.html", contentType);
+        CountingWriter out = new CountingWriter();
+        try (RewriteWriter writer = new RewriteWriter(out, stages, config.getWindow())) {
+            // write like a servlet in blocks of 8k
+            for (int pos = 0; pos < content.length(); pos += 8192)
+                writer.write(content, pos, Math.min(8192, content.length() - pos));
+        }
+        return out.count;
+    }
+
+    private static class CountingWriter extends Writer {
+
+        private long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Shared pool of fixed size byte buffers used to capture the content of responses. The segments
+ * are sliced from slabs of direct memory, captured content does not grow the heap. A slab is kept
+ * as long as one of its segments is used, only a few free slabs are kept for the next requests. If
+ * the direct memory of all slabs reaches the limit, segments are allocated on the heap.
+ *
+ * <p>The pool is split in stripes with their own lock, a thread uses the stripe of its id. Only if
+ * the direct memory is used up the free segments of the other stripes are taken.
+ */
+public class BufferPool {
+
+    public static final int SEGMENT_SIZE = 16384;
+    private static final int SLAB_SEGMENTS = 64;
+    public static final int SLAB_SIZE = SEGMENT_SIZE * SLAB_SEGMENTS;
+    private static final int MAX_FREE_SLABS = 8;
+    private static final int MAX_STRIPES = 16;
+    /** Maximum direct memory of all slabs, set with the system property of the same name. */
+    public static final long MAX_DIRECT_MEMORY =
+            Long.getLong("rewriteservlet.maxDirectMemory", 64L * 1024 * 1024);
+
+    private static Logger log = Logger.getLogger(BufferPool.class.getCanonicalName());
+    private static final Stripe[] stripes = createStripes();
+    private static final AtomicLong allocated = new AtomicLong();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private BufferPool() {}
+
+    private static Stripe[] createStripes() {
+        int count = 1;
+        while (count < Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES))
+            count <<= 1;
+        Stripe[] out = new Stripe[count];
+        for (int i = 0; i < count; i++) out[i] = new Stripe(Math.max(1, MAX_FREE_SLABS / count));
+        return out;
+    }
+
+    private static int home() {
+        return (int) Thread.currentThread().getId() & (stripes.length - 1);
+    }
+
+    /** Return an empty segment, it's a heap buffer if the direct memory limit is reached. */
+    public static ByteBuffer get() {
+        int home = home();
+        ByteBuffer segment = stripes[home].get(true);
+        for (int i = 1; segment == null && i < stripes.length; i++)
+            segment = stripes[(home + i) & (stripes.length - 1)].get(false);
+        return segment == null ? ByteBuffer.allocate(SEGMENT_SIZE) : segment;
+    }
+
+    /** Give the segment back, the content is dropped. Heap segments are ignored. */
+    public static void release(ByteBuffer segment) {
+        if (segment == null || !segment.isDirect()) return;
+        // mostly the segment is released by the thread that got it
+        int home = home();
+        for (int i = 0; i < stripes.length; i++)
+            if (stripes[(home + i) & (stripes.length - 1)].release(segment)) return;
+    }
+
+    /** Return the number of free direct segments in the pool. */
+    public static int getPooled() {
+        return pooled.get();
+    }
+
+    /** Return the bytes of direct memory held by the pool, used and free. */
+    public static long getAllocated() {
+        return allocated.get();
+    }
+
+    private static boolean reserve() {
+        while (true) {
+            long current = allocated.get();
+            if (current + SLAB_SIZE > MAX_DIRECT_MEMORY) return false;
+            if (allocated.compareAndSet(current, current + SLAB_SIZE)) return true;
+        }
+    }
+
+    private static class Stripe {
+
+        private final IdentityHashMap<ByteBuffer, Slab> owners = new IdentityHashMap<>();
+        // used slabs with free segments, they are filled before a free slab is used
+        private final ArrayDeque<Slab> partial = new ArrayDeque<>();
+        private final ArrayDeque<Slab> free = new ArrayDeque<>();
+        private final int maxFree;
+
+        Stripe(int maxFree) {
+            this.maxFree = maxFree;
+        }
+
+        synchronized ByteBuffer get(boolean allocate) {
+            Slab slab = partial.peek();
+            if (slab == null) {
+                slab = free.poll();
+                if (slab == null && allocate) slab = allocate();
+                if (slab == null) return null;
+                partial.push(slab);
+            }
+            ByteBuffer segment = slab.segments.pop();
+            slab.used++;
+            pooled.decrementAndGet();
+            if (slab.segments.isEmpty()) partial.poll();
+            return segment;
+        }
+
+        private Slab allocate() {
+            if (!reserve()) return null;
+            ByteBuffer memory;
+            try {
+                memory = ByteBuffer.allocateDirect(SLAB_SIZE);
+            } catch (OutOfMemoryError e) {
+                // the limit of the JVM is lower than ours
+                log.fine("direct memory not available: " + e);
+                allocated.addAndGet(-SLAB_SIZE);
+                return null;
+            }
+            Slab slab = new Slab();
+            for (int i = 0; i < SLAB_SEGMENTS; i++) {
+                memory.limit((i + 1) * SEGMENT_SIZE).position(i * SEGMENT_SIZE);
+                ByteBuffer segment = memory.slice();
+                slab.segments.push(segment);
+                owners.put(segment, slab);
+            }
+            pooled.addAndGet(SLAB_SEGMENTS);
+            return slab;
+        }
+
+        synchronized boolean release(ByteBuffer segment) {
+            Slab slab = owners.get(segment);
+            if (slab == null) return false;
+            segment.clear();
+            slab.segments.push(segment);
+            slab.used--;
+            pooled.incrementAndGet();
+            if (slab.used > 0) {
+                // the slab was completely used before
+                if (slab.segments.size() == 1) partial.add(slab);
+                return true;
+            }
+            partial.remove(slab);
+            if (free.size() < maxFree) {
+                free.push(slab);
+                return true;
+            }
+            // the memory is freed by the garbage collector
+            for (ByteBuffer s : slab.segments) owners.remove(s);
+            allocated.addAndGet(-SLAB_SIZE);
+            pooled.addAndGet(-SLAB_SEGMENTS);
+            return true;
+        }
+    }
+
+    private static class Slab {
+        private final ArrayDeque<ByteBuffer> segments = new ArrayDeque<>(SLAB_SEGMENTS);
+        private int used;
+    }
+}
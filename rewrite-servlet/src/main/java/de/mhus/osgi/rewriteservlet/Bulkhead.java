@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limit the concurrent requests of a configuration. Requests over the limit wait in the order
+ * they arrive, if the queue is full or the wait time is over the request is rejected. The
+ * bulkhead is kept if the configuration is reloaded, only the limits are changed.
+ */
+public class Bulkhead {
+
+    private final Permits permits;
+    private volatile int maxConcurrent;
+    private volatile int maxQueue;
+    private volatile long queueTimeout;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Create the bulkhead.
+     *
+     * @param maxConcurrent Maximum count of concurrent requests
+     * @param maxQueue Maximum count of waiting requests
+     * @param queueTimeout Maximum time in ms to wait
+     */
+    public Bulkhead(int maxConcurrent, int maxQueue, long queueTimeout) {
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Permits(maxConcurrent);
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout;
+    }
+
+    /** Return true if the request can be executed, release() must be called after it. */
+    public boolean acquire() {
+        try {
+            // with a timeout also the first try respects the waiting requests
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) return true;
+            if (waiting.incrementAndGet() > maxQueue) {
+                waiting.decrementAndGet();
+                return false;
+            }
+            try {
+                return permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Change the limits. Executed requests keep their permit, with a lower limit new requests wait
+     * until enough of them are released.
+     */
+    public synchronized void resize(int maxConcurrent, int maxQueue, long queueTimeout) {
+        int delta = maxConcurrent - this.maxConcurrent;
+        if (delta > 0) permits.release(delta);
+        else if (delta < 0) permits.reducePermits(-delta);
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /** Return the count of executed requests. */
+    public int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /** Return the count of waiting requests. */
+    public int getQueued() {
+        return waiting.get();
+    }
+
+    // the permits can be reduced below the count of executed requests
+    private static class Permits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
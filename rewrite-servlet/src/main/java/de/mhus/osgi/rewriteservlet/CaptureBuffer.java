@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream collecting the content in direct segments of the BufferPool. The buffer never
+ * copies collected content to grow. Call release() to give the segments back to the pool.
+ */
+public class CaptureBuffer extends OutputStream {
+
+    // direct buffers are copied through a heap array to streams
+    private static final ThreadLocal<byte[]> scratch =
+            ThreadLocal.withInitial(() -> new byte[BufferPool.SEGMENT_SIZE]);
+
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private ByteBuffer current;
+    private long size;
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current == null || !current.hasRemaining()) next();
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current == null || !current.hasRemaining()) next();
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    private void next() {
+        current = BufferPool.get();
+        segments.add(current);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /** Write the collected content to the stream. */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buf = scratch.get();
+        for (ByteBuffer segment : segments) {
+            ByteBuffer view = (ByteBuffer) segment.duplicate().flip();
+            while (view.hasRemaining()) {
+                int n = Math.min(buf.length, view.remaining());
+                view.get(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+    /** Return a stream to read the collected content. */
+    public InputStream getInputStream() {
+        return new InputStream() {
+
+            private int segment;
+            private ByteBuffer view;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                while (view == null || !view.hasRemaining()) {
+                    if (segment >= segments.size()) return -1;
+                    view = (ByteBuffer) segments.get(segment++).duplicate().flip();
+                }
+                int n = Math.min(len, view.remaining());
+                view.get(b, off, n);
+                return n;
+            }
+        };
+    }
+
+    /** Decode the collected content. */
+    public String toString(Charset charset) {
+        StringWriter sw = new StringWriter((int) Math.min(size, Integer.MAX_VALUE - 8));
+        try (DecodingOutputStream dec = new DecodingOutputStream(sw, charset)) {
+            writeTo(dec);
+        } catch (IOException e) {
+            // not possible for a StringWriter
+            throw new IllegalStateException(e);
+        }
+        return sw.toString();
+    }
+
+    /** Give the segments back to the pool, the buffer is empty after this. */
+    public void release() {
+        for (ByteBuffer segment : segments) BufferPool.release(segment);
+        segments.clear();
+        current = null;
+        size = 0;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** Helper for the content encodings gzip and deflate. */
+public class ContentEncoding {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private ContentEncoding() {}
+
+    /** Return true if the content is not encoded. */
+    public static boolean isIdentity(String encoding) {
+        return encoding == null
+                || encoding.trim().isEmpty()
+                || encoding.trim().equalsIgnoreCase("identity");
+    }
+
+    /** Return true if the content can be decoded. */
+    public static boolean isSupported(String encoding) {
+        return isIdentity(encoding) || isGzip(encoding) || isDeflate(encoding);
+    }
+
+    private static boolean isGzip(String encoding) {
+        String e = encoding.trim();
+        return e.equalsIgnoreCase(GZIP) || e.equalsIgnoreCase("x-gzip");
+    }
+
+    private static boolean isDeflate(String encoding) {
+        return encoding.trim().equalsIgnoreCase(DEFLATE);
+    }
+
+    public static InputStream decode(InputStream is, String encoding) throws IOException {
+        if (isIdentity(encoding)) return is;
+        if (isGzip(encoding)) return new GZIPInputStream(is);
+        if (isDeflate(encoding)) return new InflaterInputStream(is);
+        throw new IOException("unsupported encoding: " + encoding);
+    }
+
+    /** Return a stream decoding the written content into the target. */
+    public static OutputStream decode(OutputStream target, String encoding) throws IOException {
+        if (isIdentity(encoding)) return target;
+        if (isGzip(encoding)) return new InflatingOutputStream(target, true);
+        if (isDeflate(encoding)) return new InflatingOutputStream(target, false);
+        throw new IOException("unsupported encoding: " + encoding);
+    }
+
+    /** Return the stream to encode, call finish() on it after the content is written. */
+    public static DeflaterOutputStream encode(OutputStream target, String encoding)
+            throws IOException {
+        if (GZIP.equals(encoding)) return new GZIPOutputStream(target, 8192);
+        if (DEFLATE.equals(encoding)) return new DeflaterOutputStream(target);
+        return null;
+    }
+
+    /**
+     * Select the encoding for the client.
+     *
+     * @param acceptEncoding The Accept-Encoding header of the request
+     * @return gzip, deflate or null for identity
+     */
+    public static String select(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        boolean gzip = false;
+        boolean deflate = false;
+        boolean any = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] parts = part.split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (isRejected(parts)) continue;
+            if (name.equals(GZIP) || name.equals("x-gzip")) gzip = true;
+            else if (name.equals(DEFLATE)) deflate = true;
+            else if (name.equals("*")) any = true;
+        }
+        if (gzip || any) return GZIP;
+        if (deflate) return DEFLATE;
+        return null;
+    }
+
+    // q=0 means 'not acceptable'
+    private static boolean isRejected(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String p = parts[i].trim();
+            if (p.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decode written bytes with the given charset and forward the characters to a writer. Incomplete
+ * multi byte sequences are kept until the next write.
+ */
+public class DecodingOutputStream extends OutputStream {
+
+    private final Writer target;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer in = ByteBuffer.allocate(8192);
+    private final CharBuffer out = CharBuffer.allocate(8192);
+    private boolean closed;
+
+    public DecodingOutputStream(Writer target, Charset charset) {
+        this.target = target;
+        this.decoder =
+                charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("stream closed");
+        while (len > 0) {
+            int n = Math.min(len, in.remaining());
+            in.put(b, off, n);
+            off += n;
+            len -= n;
+            decode(false);
+        }
+    }
+
+    private void decode(boolean last) throws IOException {
+        in.flip();
+        while (true) {
+            CoderResult res = decoder.decode(in, out, last);
+            drain();
+            if (!res.isOverflow()) break;
+        }
+        in.compact();
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        if (out.hasRemaining()) target.write(out.array(), out.arrayOffset(), out.remaining());
+        out.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    /** Decode the remaining bytes. The target will not be closed. */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        decode(true);
+        while (decoder.flush(out).isOverflow()) drain();
+        drain();
+        closed = true;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Async context of a delegated servlet. The completion is executed before the original context
+ * is completed, this is the last chance to write the rewritten content to the response. If the
+ * request is dispatched again the call is aborted, its buffers and permit are released.
+ */
+public class DispatchedAsyncContext implements AsyncContext {
+
+    private static Logger log = Logger.getLogger(DispatchedAsyncContext.class.getCanonicalName());
+
+    private AsyncContext instance;
+    private Completion completion;
+
+    public interface Completion {
+        /** Write the content, only the first call of complete() or abort() is executed. */
+        void complete() throws IOException;
+
+        /** Release the call without writing the collected content. */
+        void abort();
+    }
+
+    public DispatchedAsyncContext(AsyncContext instance, Completion completion) {
+        this.instance = instance;
+        this.completion = completion;
+        instance.addListener(
+                new AsyncListener() {
+
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {
+                        // completed by the container, e.g. after a dispatch
+                        runCompletion();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) throws IOException {
+                        log.fine("delegated servlet timed out");
+                        complete();
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) throws IOException {
+                        runCompletion();
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) throws IOException {}
+                });
+    }
+
+    private void runCompletion() {
+        try {
+            completion.complete();
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "rewrite failed", t);
+        }
+    }
+
+    @Override
+    public void complete() {
+        runCompletion();
+        instance.complete();
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return instance.getRequest();
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return instance.getResponse();
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return instance.hasOriginalRequestAndResponse();
+    }
+
+    @Override
+    public void dispatch() {
+        completion.abort();
+        instance.dispatch();
+    }
+
+    @Override
+    public void dispatch(String path) {
+        completion.abort();
+        instance.dispatch(path);
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+        completion.abort();
+        instance.dispatch(context, path);
+    }
+
+    @Override
+    public void start(Runnable run) {
+        instance.start(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        instance.addListener(listener);
+    }
+
+    @Override
+    public void addListener(
+            AsyncListener listener,
+            ServletRequest servletRequest,
+            ServletResponse servletResponse) {
+        instance.addListener(listener, servletRequest, servletResponse);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+        return instance.createListener(clazz);
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        instance.setTimeout(timeout);
+    }
+
+    @Override
+    public long getTimeout() {
+        return instance.getTimeout();
+    }
+}
@@ -20,10 +20,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.DispatcherType;
@@ -36,16 +43,25 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpUpgradeHandler;
 import javax.servlet.http.Part;
 
-public class DispatchedHttpServletRequest implements HttpServletRequest {
+public class DispatchedHttpServletRequest extends HttpServletRequestWrapper {
+
+    public static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
 
     private String path;
     private HttpServletRequest instance;
-    private byte[] inputBytes;
+    private int captureLimit;
+    private ByteArrayOutputStream capture;
+    private ServletInputStream inputStream;
+    private ServletResponse response;
+    private DispatchedAsyncContext.Completion completion;
+    private DispatchedAsyncContext asyncContext;
+    private Map<String, String> headers;
 
     @Override
     public Object getAttribute(String name) {
@@ -70,6 +86,16 @@ public class DispatchedHttpServletRequest implements HttpServletRequest {
 
     @Override
     public long getDateHeader(String name) {
+        if (headers != null && headers.containsKey(name)) {
+            if (headers.get(name) == null) return -1;
+            SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return format.parse(headers.get(name)).getTime();
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
         return instance.getDateHeader(name);
     }
 
@@ -85,6 +111,7 @@ public class DispatchedHttpServletRequest implements HttpServletRequest {
 
     @Override
     public String getHeader(String name) {
+        if (headers != null && headers.containsKey(name)) return headers.get(name);
         return instance.getHeader(name);
     }
 
@@ -101,21 +128,25 @@ public class DispatchedHttpServletRequest implements HttpServletRequest {
     @SuppressWarnings({"unchecked", "rawtypes"})
     @Override
     public Enumeration getHeaders(String name) {
+        if (headers != null && headers.containsKey(name)) {
+            String value = headers.get(name);
+            return Collections.enumeration(
+                    value == null
+                            ? Collections.<String>emptyList()
+                            : Collections.singletonList(value));
+        }
         return instance.getHeaders(name);
     }
 
     @Override
     public ServletInputStream getInputStream() throws IOException {
-        ByteArrayOutputStream bs = new ByteArrayOutputStream();
-        ServletInputStream is = instance.getInputStream();
-        while (true) {
-            int b = is.read();
-            if (b < 0) break;
-            bs.write(b);
+        if (inputStream == null) {
+            if (captureLimit > 0) {
+                capture = new ByteArrayOutputStream(Math.min(captureLimit, 8192));
+                inputStream = new CaptureServletInputStream(instance.getInputStream());
+            } else inputStream = instance.getInputStream();
         }
-        inputBytes = bs.toByteArray();
-
-        return new MyServletInputStream();
+        return inputStream;
     }
 
     @Override
@@ -126,11 +157,23 @@ public class DispatchedHttpServletRequest implements HttpServletRequest {
     @SuppressWarnings({"unchecked", "rawtypes"})
     @Override
     public Enumeration getHeaderNames() {
+        if (headers != null) {
+            List<String> names = new ArrayList<>();
+            for (Map.Entry<String, String> entry : headers.entrySet())
+                if (entry.getValue() != null) names.add(entry.getKey());
+            for (Enumeration<String> en = instance.getHeaderNames(); en.hasMoreElements(); ) {
+                String name = en.nextElement();
+                if (!headers.containsKey(name)) names.add(name);
+            }
+            return Collections.enumeration(names);
+        }
         return instance.getHeaderNames();
     }
 
     @Override
     public int getIntHeader(String name) {
+        if (headers != null && headers.containsKey(name))
+            return headers.get(name) == null ? -1 : Integer.parseInt(headers.get(name));
         return instance.getIntHeader(name);
     }
 
@@ -336,38 +379,83 @@ public class DispatchedHttpServletRequest implements HttpServletRequest {
     }
 
     public DispatchedHttpServletRequest(String path, HttpServletRequest req) {
+        this(path, req, 0);
+    }
+
+    /**
+     * Create the request.
+     *
+     * @param path The path info for the delegated servlet
+     * @param req The original request
+     * @param captureLimit Maximum count of body bytes to capture for debugging, 0 to disable
+     */
+    public DispatchedHttpServletRequest(String path, HttpServletRequest req, int captureLimit) {
+        super(req);
         // if (path.equals("")) path = null;
         this.path = path;
         this.instance = req;
+        this.captureLimit = captureLimit;
     }
 
+    /** Replace a header of the original request, a null value removes the header. */
+    public void setHeader(String name, String value) {
+        if (headers == null) headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put(name, value);
+    }
+
+    /** Return the captured start of the body or null if nothing was captured. */
     public byte[] getInputBytes() {
-        return inputBytes;
+        return capture == null ? null : capture.toByteArray();
     }
 
-    private class MyServletInputStream extends ServletInputStream {
+    // read from the original stream and copy the first bytes into the capture buffer
+    private class CaptureServletInputStream extends ServletInputStream {
+
+        private ServletInputStream is;
 
-        private int cnt = 0;
+        public CaptureServletInputStream(ServletInputStream is) {
+            this.is = is;
+        }
 
         @Override
         public int read() throws IOException {
-            if (inputBytes == null || cnt >= inputBytes.length) return -1;
-            cnt++;
-            return inputBytes[cnt - 1];
+            int b = is.read();
+            if (b >= 0 && capture.size() < captureLimit) capture.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = is.read(b, off, len);
+            if (n > 0 && capture.size() < captureLimit)
+                capture.write(b, off, Math.min(n, captureLimit - capture.size()));
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return is.available();
         }
 
         @Override
         public boolean isFinished() {
-            return inputBytes == null || cnt >= inputBytes.length;
+            return is.isFinished();
         }
 
         @Override
         public boolean isReady() {
-            return true;
+            return is.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            is.setReadListener(readListener);
         }
 
         @Override
-        public void setReadListener(ReadListener readListener) {}
+        public void close() throws IOException {
+            is.close();
+        }
     }
 
     @Override
@@ -380,15 +468,34 @@ public class DispatchedHttpServletRequest implements HttpServletRequest {
         return instance.getServletContext();
     }
 
+    /**
+     * Set the completion for async requests. If the delegated servlet starts async processing the
+     * completion is called before the async context completes.
+     */
+    public void setCompletion(
+            ServletResponse response, DispatchedAsyncContext.Completion completion) {
+        this.response = response;
+        this.completion = completion;
+    }
+
+    /** Return true if the delegated servlet started async processing. */
+    public boolean isDispatchedAsync() {
+        return asyncContext != null;
+    }
+
     @Override
     public AsyncContext startAsync() throws IllegalStateException {
-        return instance.startAsync();
+        if (completion == null) return instance.startAsync();
+        return startAsync(this, response);
     }
 
     @Override
     public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse)
             throws IllegalStateException {
-        return instance.startAsync(servletRequest, servletResponse);
+        AsyncContext context = instance.startAsync(servletRequest, servletResponse);
+        if (completion == null) return context;
+        asyncContext = new DispatchedAsyncContext(context, completion);
+        return asyncContext;
     }
 
     @Override
@@ -403,6 +510,7 @@ public class DispatchedHttpServletRequest implements HttpServletRequest {
 
     @Override
     public AsyncContext getAsyncContext() {
+        if (asyncContext != null) return asyncContext;
         return instance.getAsyncContext();
     }
 
@@ -15,40 +15,69 @@
  */
 package de.mhus.osgi.rewriteservlet;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
-public class DispatchedHttpServletResponse implements HttpServletResponse {
+/**
+ * Response for the delegated servlet. Status, headers, cookies and content type are recorded and
+ * applied to the original response in one step before the first byte of content is written.
+ * After that all changes are forwarded directly.
+ */
+public class DispatchedHttpServletResponse extends HttpServletResponseWrapper {
+
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String CONTENT_LANGUAGE = "Content-Language";
 
     private HttpServletResponse instace;
 
     @Override
     public String getContentType() {
-        return instace.getContentType();
+        if (applied) return instace.getContentType();
+        if (contentType == null || characterEncoding == null) return contentType;
+        return contentType + ";charset=" + characterEncoding;
     }
 
     @Override
     public void setCharacterEncoding(String charset) {
-        instace.setCharacterEncoding(charset);
+        if (applied) instace.setCharacterEncoding(charset);
+        else characterEncoding = charset;
     }
 
     @Override
     public void addDateHeader(String name, long date) {
-        instace.addDateHeader(name, date);
+        addHeader(name, formatDate(date));
     }
 
     @Override
     public void addHeader(String name, String value) {
-        instace.addHeader(name, value);
+        if (intercept(name, value)) return;
+        if (applied) instace.addHeader(name, value);
+        else if (value != null) headers.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
     }
 
     @Override
@@ -58,7 +87,7 @@ public class DispatchedHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void addIntHeader(String name, int value) {
-        instace.addIntHeader(name, value);
+        addHeader(name, String.valueOf(value));
     }
 
     @Override
@@ -68,22 +97,43 @@ public class DispatchedHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void flushBuffer() throws IOException {
+        // collected content can't be flushed before it is rewritten
+        if (!isStreaming()) return;
+        if (writer != null) writer.flush();
+        else if (sos != null) sos.flush();
+        applyHeaders();
         instace.flushBuffer();
     }
 
     @Override
     public void resetBuffer() {
-        instace.resetBuffer();
+        if (applied) {
+            instace.resetBuffer();
+            return;
+        }
+        if (writer != null) writer.flush();
+        if (capture != null) capture.release();
     }
 
     @Override
     public boolean isCommitted() {
-        return instace.isCommitted();
+        return applied && instace.isCommitted();
     }
 
     @Override
     public void reset() {
-        instace.reset();
+        if (applied) {
+            instace.reset();
+            return;
+        }
+        resetBuffer();
+        status = SC_OK;
+        headers.clear();
+        cookies.clear();
+        contentType = null;
+        characterEncoding = null;
+        contentEncoding = null;
+        contentLength = -1;
     }
 
     @Override
@@ -96,35 +146,268 @@ public class DispatchedHttpServletResponse implements HttpServletResponse {
         return instace.getLocale();
     }
 
-    private StringWriter sw;
     private PrintWriter writer;
-    private ByteArrayOutputStream os;
+    private CaptureBuffer capture;
+    private long maxCapture;
+    private boolean captureExceeded;
+    private boolean passThrough;
     private ServletOutputStream sos;
+    private Function<String, List<RewriteStage>> streamStages;
+    private int streamWindow;
+    private RewriteWriter rewriteWriter;
+    private DecodingOutputStream decoder;
+    private OutputStream inflater;
+    private DeflaterOutputStream compressor;
+    private ForwardServletOutputStream streamOut;
+    private boolean streamFinished;
+    private String rewrittenEncoding;
+    private String acceptEncoding;
+    private String contentEncoding;
+    private long contentLength = -1;
+    private boolean applied;
+    // the content is written unchanged to the original response, the entity headers are valid
+    private boolean unchanged;
+    private int status = SC_OK;
+    private final Map<String, List<String>> headers =
+            new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final List<Cookie> cookies = new ArrayList<>();
+    private String contentType;
+    private String characterEncoding;
+
+    /**
+     * Switch to streaming mode. The content is not collected, it's rewritten by the stages
+     * returned for the content type and written to the original response while it is produced.
+     */
+    public void setStreaming(Function<String, List<RewriteStage>> stages, int window) {
+        this.streamStages = stages;
+        this.streamWindow = window;
+    }
+
+    public boolean isStreaming() {
+        return streamStages != null;
+    }
+
+    /** Set the maximum size of collected content, larger content is written unchanged. */
+    public void setMaxCapture(long maxCapture) {
+        this.maxCapture = maxCapture;
+    }
+
+    /** Return true if the content exceeded the maximum size and was written unchanged. */
+    public boolean isCaptureExceeded() {
+        return captureExceeded;
+    }
+
+    /** Set the Accept-Encoding header of the client to encode rewritten content. */
+    public void setAcceptEncoding(String acceptEncoding) {
+        this.acceptEncoding = acceptEncoding;
+    }
+
+    /**
+     * Write the held back content of the rewrite pipeline in streaming mode. It's called if the
+     * servlet or the container closes the output, e.g. after a forward, and when the call is
+     * finished. Only the first call is executed.
+     */
+    public void finishStream() throws IOException {
+        if (streamFinished) return;
+        streamFinished = true;
+        if (writer != null) writer.flush();
+        if (inflater != null) inflater.close();
+        if (decoder != null) decoder.close();
+        if (rewriteWriter != null) rewriteWriter.close();
+        if (compressor != null) compressor.finish();
+        // the servlet has not written any content
+        applyHeaders();
+        if (sos != null || writer != null) instace.getOutputStream().flush();
+    }
+
+    // content encoding and length are not valid after a rewrite, they are kept back
+    private boolean intercept(String name, String value) {
+        if (CONTENT_ENCODING.equalsIgnoreCase(name)) {
+            contentEncoding = value;
+        } else if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            try {
+                contentLength = value == null ? -1 : Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+        } else return false;
+        if (unchanged) instace.setHeader(name, value);
+        return true;
+    }
+
+    private static boolean isEntityHeader(String name) {
+        return CONTENT_ENCODING.equalsIgnoreCase(name) || CONTENT_LENGTH.equalsIgnoreCase(name);
+    }
 
-    public String getContent() {
-        if (writer != null) {
-            writer.flush();
-            return sw.toString();
+    private static String formatDate(long date) {
+        SimpleDateFormat format =
+                new SimpleDateFormat(DispatchedHttpServletRequest.DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(date));
+    }
+
+    /** Return the Content-Encoding set by the servlet. */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /** Return true if the servlet has set cookies. */
+    public boolean hasCookies() {
+        return !cookies.isEmpty() || (applied && instace.containsHeader("Set-Cookie"));
+    }
+
+    /**
+     * Return a copy of the headers set by the servlet without the entity headers. The map is case
+     * insensitive.
+     */
+    public Map<String, List<String>> getServletHeaders() {
+        Map<String, List<String>> res = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : getHeaderNames()) {
+            if (!isEntityHeader(name)) res.put(name, new ArrayList<>(getHeaders(name)));
+        }
+        // the locale is set directly in the original response
+        String language = instace.getHeader(CONTENT_LANGUAGE);
+        if (language != null && !res.containsKey(CONTENT_LANGUAGE))
+            res.put(CONTENT_LANGUAGE, new ArrayList<>(Collections.singletonList(language)));
+        return res;
+    }
+
+    /**
+     * Apply the recorded status, headers, cookies and content type to the original response. Only
+     * the first call is executed, after that all changes are forwarded directly.
+     */
+    public void applyHeaders() {
+        if (applied) return;
+        applied = true;
+        instace.setStatus(status);
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            boolean first = true;
+            for (String value : entry.getValue()) {
+                if (first) instace.setHeader(entry.getKey(), value);
+                else instace.addHeader(entry.getKey(), value);
+                first = false;
+            }
         }
-        if (os != null) {
+        for (Cookie cookie : cookies) instace.addCookie(cookie);
+        if (contentType != null) instace.setContentType(contentType);
+        if (characterEncoding != null) instace.setCharacterEncoding(characterEncoding);
+        headers.clear();
+        cookies.clear();
+    }
+
+    /** Apply the recorded headers and the entity headers for content returned unchanged. */
+    public void applyEntityHeaders(long length) {
+        applyHeaders();
+        if (contentEncoding != null) instace.setHeader(CONTENT_ENCODING, contentEncoding);
+        if (length >= 0) instace.setContentLengthLong(length);
+    }
+
+    /** Apply the recorded headers including the entity headers set by the servlet. */
+    public void applyServletHeaders() {
+        applyEntityHeaders(contentLength);
+    }
+
+    /**
+     * Return a stream encoding the rewritten content into the target. If the content of the
+     * servlet was encoded the rewritten content is encoded again with an encoding accepted by the
+     * client.
+     */
+    public OutputStream encodeRewritten(OutputStream target) throws IOException {
+        if (ContentEncoding.isIdentity(contentEncoding)) return target;
+        rewrittenEncoding = ContentEncoding.select(acceptEncoding);
+        if (rewrittenEncoding == null) return target;
+        compressor = ContentEncoding.encode(target, rewrittenEncoding);
+        return compressor;
+    }
+
+    /** Finish the encoding of the rewritten content. */
+    public void finishRewrittenStream() throws IOException {
+        if (compressor != null) compressor.finish();
+    }
+
+    /**
+     * Apply the recorded headers and the entity headers for the rewritten content.
+     *
+     * @param length The length of the encoded content or -1 if unknown
+     */
+    public void applyRewrittenHeaders(long length) {
+        applyHeaders();
+        if (rewrittenEncoding != null) {
+            instace.setHeader(CONTENT_ENCODING, rewrittenEncoding);
+            instace.addHeader("Vary", "Accept-Encoding");
+        }
+        if (length >= 0) instace.setContentLengthLong(length);
+    }
+
+    /**
+     * Return the count of bytes written by the servlet to the rewritten output stream or the count
+     * of characters written to the rewritten writer.
+     */
+    public long getStreamedBytesIn() {
+        if (rewriteWriter == null) return 0;
+        if (sos instanceof ForwardServletOutputStream)
+            return ((ForwardServletOutputStream) sos).count;
+        return rewriteWriter.getCount();
+    }
+
+    /** Return the count of rewritten bytes written to the client in streaming mode. */
+    public long getStreamedBytesOut() {
+        return streamOut == null ? 0 : streamOut.count;
+    }
+
+    private List<RewriteStage> createStreamStages() {
+        return streamStages.apply(getContentType());
+    }
+
+    /** Return the collected content or null if the servlet has not written any content. */
+    public CaptureBuffer getCapture() {
+        if (writer != null) writer.flush();
+        return capture;
+    }
+
+    /** Give the buffers of the collected content back to the pool. */
+    public void release() {
+        if (capture != null) capture.release();
+    }
+
+    /**
+     * Stop collecting content, e.g. if the request is dispatched again. The collected content is
+     * dropped, the recorded headers are applied and further content is written unchanged.
+     */
+    public void passThrough() {
+        if (writer != null) writer.flush();
+        release();
+        passThrough = true;
+        contentLength = -1;
+        applyHeaders();
+        // in streaming mode further content is rewritten
+        unchanged = !isStreaming();
+    }
+
+    /** Return the charset of the content, default is ISO-8859-1 like defined for servlets. */
+    public Charset getCharset() {
+        String encoding = getCharacterEncoding();
+        if (encoding != null) {
             try {
-                sos.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+                return Charset.forName(encoding);
+            } catch (IllegalArgumentException e) {
+                // unknown charset
             }
-            return new String(os.toByteArray());
         }
-        return null;
+        return StandardCharsets.ISO_8859_1;
     }
 
     @Override
     public void addCookie(Cookie arg0) {
-        instace.addCookie(arg0);
+        if (applied) instace.addCookie(arg0);
+        else cookies.add(arg0);
     }
 
     @Override
     public boolean containsHeader(String arg0) {
-        return instace.containsHeader(arg0);
+        if (isEntityHeader(arg0)) return getHeader(arg0) != null;
+        if (applied) return instace.containsHeader(arg0);
+        return headers.containsKey(arg0);
     }
 
     @Override
@@ -151,30 +434,35 @@ public class DispatchedHttpServletResponse implements HttpServletResponse {
 
     @Override
     public String getCharacterEncoding() {
-        return instace.getCharacterEncoding();
+        if (applied) return instace.getCharacterEncoding();
+        return characterEncoding == null
+                ? StandardCharsets.ISO_8859_1.name()
+                : characterEncoding;
     }
 
     @Override
     public ServletOutputStream getOutputStream() throws IOException {
         //		return instace.getOutputStream();
-        if (os == null) {
-            os = new ByteArrayOutputStream();
-            sos =
-                    new ServletOutputStream() {
-
-                        @Override
-                        public void write(int b) throws IOException {
-                            os.write(b);
-                        }
-
-                        @Override
-                        public boolean isReady() {
-                            return true;
-                        }
-
-                        @Override
-                        public void setWriteListener(WriteListener writeListener) {}
-                    };
+        if (writer != null) throw new IllegalStateException("getWriter() has already been called");
+        if (sos == null) {
+            if (streamStages != null) {
+                List<RewriteStage> stages = createStreamStages();
+                if (stages.isEmpty() || !ContentEncoding.isSupported(contentEncoding)) {
+                    applyServletHeaders();
+                    unchanged = true;
+                    sos = instace.getOutputStream();
+                } else {
+                    rewriteWriter = createRewriteWriter(stages);
+                    decoder = new DecodingOutputStream(rewriteWriter, getCharset());
+                    inflater = ContentEncoding.decode(decoder, contentEncoding);
+                    ForwardServletOutputStream out = new ForwardServletOutputStream(inflater);
+                    out.onClose = this::finishStream;
+                    sos = out;
+                }
+            } else {
+                if (capture == null) capture = new CaptureBuffer();
+                sos = new ForwardServletOutputStream(new CaptureOutputStream());
+            }
         }
         return sos;
     }
@@ -182,90 +470,257 @@ public class DispatchedHttpServletResponse implements HttpServletResponse {
     @Override
     public PrintWriter getWriter() throws IOException {
         //		return instace.getWriter();
+        if (writer == null && sos != null)
+            throw new IllegalStateException("getOutputStream() has already been called");
         if (writer == null) {
-            sw = new StringWriter();
-            writer = new PrintWriter(sw);
+            if (streamStages != null) {
+                List<RewriteStage> stages = createStreamStages();
+                if (stages.isEmpty()) {
+                    applyServletHeaders();
+                    unchanged = true;
+                    writer = instace.getWriter();
+                } else {
+                    rewriteWriter = createRewriteWriter(stages);
+                    writer = new StreamingPrintWriter(rewriteWriter);
+                }
+            } else {
+                if (capture == null) capture = new CaptureBuffer();
+                writer =
+                        new PrintWriter(
+                                new OutputStreamWriter(new CaptureOutputStream(), getCharset()));
+            }
         }
         return writer;
     }
 
+    // the length of streamed content is unknown, the container uses chunked encoding
+    private RewriteWriter createRewriteWriter(List<RewriteStage> stages) throws IOException {
+        streamOut = new ForwardServletOutputStream(instace.getOutputStream());
+        OutputStream out = encodeRewritten(streamOut);
+        applyRewrittenHeaders(-1);
+        return new RewriteWriter(new OutputStreamWriter(out, getCharset()), stages, streamWindow);
+    }
+
     @Override
     public void sendError(int arg0, String arg1) throws IOException {
+        applyHeaders();
         instace.sendError(arg0, arg1);
     }
 
     @Override
     public void sendError(int arg0) throws IOException {
+        applyHeaders();
         instace.sendError(arg0);
     }
 
     @Override
     public void sendRedirect(String arg0) throws IOException {
+        applyHeaders();
         instace.sendRedirect(arg0);
     }
 
     @Override
     public void setContentLength(int arg0) {
-        instace.setContentLength(arg0);
+        setContentLengthLong(arg0);
     }
 
     @Override
     public void setContentType(String arg0) {
-        instace.setContentType(arg0);
+        if (applied) {
+            instace.setContentType(arg0);
+            return;
+        }
+        if (arg0 == null) {
+            contentType = null;
+            return;
+        }
+        // split the charset like the container to keep getCharacterEncoding() valid
+        int pos = arg0.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (pos < 0) {
+            contentType = arg0.trim();
+            return;
+        }
+        String charset = arg0.substring(pos + 8);
+        int end = charset.indexOf(';');
+        contentType = arg0.substring(0, pos).trim();
+        if (contentType.endsWith(";"))
+            contentType = contentType.substring(0, contentType.length() - 1).trim();
+        if (end >= 0) {
+            contentType = contentType + charset.substring(end);
+            charset = charset.substring(0, end);
+        }
+        characterEncoding = charset.trim().replace("\"", "");
     }
 
     @Override
     public void setDateHeader(String arg0, long arg1) {
-        instace.setDateHeader(arg0, arg1);
+        setHeader(arg0, formatDate(arg1));
     }
 
     @Override
     public void setHeader(String arg0, String arg1) {
-        instace.setHeader(arg0, arg1);
+        if (intercept(arg0, arg1)) return;
+        if (applied) instace.setHeader(arg0, arg1);
+        else if (arg1 == null) headers.remove(arg0);
+        else headers.put(arg0, new ArrayList<>(Collections.singletonList(arg1)));
     }
 
     @Override
     public void setIntHeader(String arg0, int arg1) {
-        instace.setIntHeader(arg0, arg1);
+        setHeader(arg0, String.valueOf(arg1));
     }
 
     @SuppressWarnings("deprecation")
     @Override
     public void setStatus(int arg0, String arg1) {
-        instace.setStatus(arg0, arg1);
+        if (applied) instace.setStatus(arg0, arg1);
+        else status = arg0;
     }
 
     @Override
     public void setStatus(int arg0) {
-        instace.setStatus(arg0);
+        if (applied) instace.setStatus(arg0);
+        else status = arg0;
+    }
+    // collect the content until it exceeds maxCapture, after that it's written unchanged
+    private class CaptureOutputStream extends OutputStream {
+
+        private OutputStream direct;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (direct == null && !exceeds(1)) capture.write(b);
+            else direct.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (direct == null && !exceeds(len)) capture.write(b, off, len);
+            else direct.write(b, off, len);
+        }
+
+        private boolean exceeds(int len) throws IOException {
+            if (!passThrough && (maxCapture <= 0 || capture.size() + len <= maxCapture))
+                return false;
+            captureExceeded = !passThrough;
+            applyServletHeaders();
+            unchanged = true;
+            direct = instace.getOutputStream();
+            capture.writeTo(direct);
+            capture.release();
+            capture = null;
+            return true;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (direct != null) direct.flush();
+        }
+    }
+
+    // the container closes the writer after a forward, the rewrite pipeline must be finished
+    private class StreamingPrintWriter extends PrintWriter {
+
+        StreamingPrintWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void close() {
+            try {
+                finishStream();
+            } catch (IOException e) {
+                setError();
+            }
+            super.close();
+        }
+    }
+
+    private static class ForwardServletOutputStream extends ServletOutputStream {
+
+        private OutputStream target;
+        private long count;
+        private Closeable onClose;
+
+        public ForwardServletOutputStream(OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (onClose != null) onClose.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {}
     }
 
     public DispatchedHttpServletResponse(HttpServletResponse instance) {
+        super(instance);
         this.instace = instance;
     }
 
     @Override
     public void setContentLengthLong(long len) {
-        instace.setContentLengthLong(len);
+        contentLength = len;
+        if (unchanged) instace.setContentLengthLong(len);
     }
 
     @Override
     public int getStatus() {
-        return instace.getStatus();
+        return applied ? instace.getStatus() : status;
     }
 
     @Override
     public String getHeader(String name) {
-        return instace.getHeader(name);
+        if (CONTENT_ENCODING.equalsIgnoreCase(name)) return contentEncoding;
+        if (CONTENT_LENGTH.equalsIgnoreCase(name))
+            return contentLength < 0 ? null : String.valueOf(contentLength);
+        if (applied) return instace.getHeader(name);
+        List<String> values = headers.get(name);
+        return values == null ? null : values.get(0);
     }
 
     @Override
     public Collection<String> getHeaders(String name) {
-        return instace.getHeaders(name);
+        if (isEntityHeader(name)) {
+            String value = getHeader(name);
+            return value == null
+                    ? Collections.<String>emptyList()
+                    : Collections.singletonList(value);
+        }
+        if (applied) return instace.getHeaders(name);
+        List<String> values = headers.get(name);
+        return values == null
+                ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(values);
     }
 
     @Override
     public Collection<String> getHeaderNames() {
-        return instace.getHeaderNames();
+        if (applied) return instace.getHeaderNames();
+        return Collections.unmodifiableCollection(new ArrayList<>(headers.keySet()));
     }
 }
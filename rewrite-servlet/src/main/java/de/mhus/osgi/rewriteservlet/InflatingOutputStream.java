@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompress gzip or deflate content written to the stream and forward it to the target. It's the
+ * push version of GZIPInputStream and InflaterInputStream.
+ */
+public class InflatingOutputStream extends OutputStream {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final OutputStream target;
+    private final boolean gzip;
+    private final byte[] buf = new byte[8192];
+    private byte[] header = new byte[16];
+    private int headerLength;
+    private Inflater inflater;
+    private boolean finished;
+
+    public InflatingOutputStream(OutputStream target, boolean gzip) {
+        this.target = target;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished || len <= 0) return;
+        if (inflater == null) {
+            // collect the header first
+            if (headerLength + len > header.length)
+                header = Arrays.copyOf(header, Math.max(header.length * 2, headerLength + len));
+            System.arraycopy(b, off, header, headerLength, len);
+            headerLength += len;
+            int start = gzip ? gzipHeaderLength() : deflateStart();
+            if (start < 0) return;
+            byte[] rest = header;
+            int restLength = headerLength;
+            header = null;
+            inflate(rest, start, restLength - start);
+            return;
+        }
+        inflate(b, off, len);
+    }
+
+    private void inflate(byte[] b, int off, int len) throws IOException {
+        inflater.setInput(b, off, len);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n > 0) target.write(buf, 0, n);
+                else if (inflater.needsInput()) break;
+                else if (inflater.needsDictionary()) throw new IOException("dictionary needed");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        // the rest is the gzip trailer
+        if (inflater.finished()) finished = true;
+    }
+
+    private int deflateStart() {
+        if (headerLength < 2) return -1;
+        int cmf = header[0] & 0xff;
+        int flg = header[1] & 0xff;
+        // the content should have a zlib wrapper, but some servers send raw deflate data
+        boolean zlib = (cmf & 0x0f) == 8 && (cmf * 256 + flg) % 31 == 0;
+        inflater = new Inflater(!zlib);
+        return 0;
+    }
+
+    private int gzipHeaderLength() throws IOException {
+        if (headerLength < 10) return -1;
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8)
+            throw new IOException("not in gzip format");
+        int flags = header[3] & 0xff;
+        int pos = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (headerLength < pos + 2) return -1;
+            pos += 2 + ((header[pos] & 0xff) | ((header[pos + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZero(pos);
+            if (pos < 0) return -1;
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipZero(pos);
+            if (pos < 0) return -1;
+        }
+        if ((flags & FHCRC) != 0) pos += 2;
+        if (pos > headerLength) return -1;
+        inflater = new Inflater(true);
+        return pos;
+    }
+
+    private int skipZero(int pos) {
+        for (; pos < headerLength; pos++) if (header[pos] == 0) return pos + 1;
+        return -1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    /** Release the inflater. The target will not be closed. */
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) inflater.end();
+        finished = true;
+    }
+}
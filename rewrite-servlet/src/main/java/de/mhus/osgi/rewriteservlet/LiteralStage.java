@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.mhus.osgi.regexutil.LiteralMatcher;
+
+/**
+ * Replace a group of literals in one pass. The literals of the group must not overlap and the
+ * replacements must not create a literal of a following rule, see canJoin(). Under these
+ * conditions the result is the same as executing the rules one after the other.
+ */
+public class LiteralStage implements RewriteStage {
+
+    private final LiteralMatcher matcher;
+    private final String[] replacements;
+    private final LongAdder[] matches;
+
+    public LiteralStage(List<String> literals, List<String> replacements) {
+        this(literals, replacements, null);
+    }
+
+    /**
+     * Create the stage.
+     *
+     * @param literals The literals to search
+     * @param replacements The replacement of each literal
+     * @param matches Counter of the replaced matches of each literal, the list or an element can
+     *     be null
+     */
+    public LiteralStage(
+            List<String> literals, List<String> replacements, List<LongAdder> matches) {
+        this.matcher = new LiteralMatcher(literals.toArray(new String[literals.size()]));
+        this.replacements = replacements.toArray(new String[replacements.size()]);
+        this.matches = matches == null ? null : matches.toArray(new LongAdder[matches.size()]);
+    }
+
+    @Override
+    public int process(CharSequence in, boolean last, StringBuilder out) {
+        int len = in.length();
+        int limit = last ? len : Math.max(0, len - matcher.getMaxLength() + 1);
+        int state = 0;
+        int pos = 0;
+        for (int i = 0; i < len; i++) {
+            state = matcher.next(state, in.charAt(i));
+            int literal = matcher.getOutput(state);
+            if (literal < 0) continue;
+            int start = i - matcher.getLength(literal) + 1;
+            // overlapping match of the same literal
+            if (start < pos) continue;
+            // the following matches start in the held back tail
+            if (start >= limit) break;
+            out.append(in, pos, start);
+            out.append(replacements[literal]);
+            pos = i + 1;
+            if (matches != null && matches[literal] != null) matches[literal].increment();
+        }
+        int consumed = Math.max(pos, limit);
+        out.append(in, pos, consumed);
+        return consumed;
+    }
+
+    /**
+     * Check if the literal rule can be added to the group without changing the result.
+     *
+     * @param literals Literals of the group
+     * @param replacements Replacements of the group
+     * @param literal The literal to add
+     * @return true if it's possible to join the group
+     */
+    public static boolean canJoin(
+            List<String> literals, List<String> replacements, String literal) {
+        for (int i = 0; i < literals.size(); i++) {
+            String other = literals.get(i);
+            if (other.contains(literal) || literal.contains(other)) return false;
+            if (overlaps(other, literal) || overlaps(literal, other)) return false;
+            // the rule of the group is executed before, the replacement must not be part of a match
+            String replacement = replacements.get(i);
+            if (replacement.isEmpty()) return false;
+            for (int j = 0; j < replacement.length(); j++)
+                if (literal.indexOf(replacement.charAt(j)) >= 0) return false;
+        }
+        return true;
+    }
+
+    // return true if a suffix of a is a prefix of b
+    private static boolean overlaps(String a, String b) {
+        for (int len = Math.min(a.length(), b.length()) - 1; len > 0; len--)
+            if (a.regionMatches(a.length() - len, b, 0, len)) return true;
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Prefix trie of the literal path prefixes of the rules. A lookup walks the path once and returns
+ * all rules with a prefix of the path, the cost depends on the path length and not on the count
+ * of rules. The state 0 is the root.
+ */
+public class PathTrie {
+
+    private final char[][] keys;
+    private final int[][] targets;
+    private final BitSet[] values;
+
+    /**
+     * Create the trie.
+     *
+     * @param prefixes The path prefix of each rule index, null if the index is not used
+     */
+    public PathTrie(String[] prefixes) {
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<BitSet> sets = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        sets.add(null);
+        for (int i = 0; i < prefixes.length; i++) {
+            String prefix = prefixes[i];
+            if (prefix == null) continue;
+            int state = 0;
+            for (int j = 0; j < prefix.length(); j++) {
+                Integer next = trie.get(state).get(prefix.charAt(j));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    sets.add(null);
+                    trie.get(state).put(prefix.charAt(j), next);
+                }
+                state = next;
+            }
+            if (sets.get(state) == null) sets.set(state, new BitSet());
+            sets.get(state).set(i);
+        }
+
+        int size = trie.size();
+        keys = new char[size][];
+        targets = new int[size][];
+        values = sets.toArray(new BitSet[size]);
+        for (int i = 0; i < size; i++) {
+            Map<Character, Integer> map = trie.get(i);
+            keys[i] = new char[map.size()];
+            targets[i] = new int[map.size()];
+            int j = 0;
+            for (Map.Entry<Character, Integer> entry : map.entrySet()) {
+                keys[i][j] = entry.getKey();
+                targets[i][j] = entry.getValue();
+                j++;
+            }
+        }
+    }
+
+    /** Return the indexes of all rules with a prefix of the path, the set can be modified. */
+    public BitSet find(String path) {
+        BitSet res = new BitSet();
+        int state = 0;
+        int pos = 0;
+        while (true) {
+            if (values[state] != null) res.or(values[state]);
+            if (pos >= path.length()) break;
+            int j = Arrays.binarySearch(keys[state], path.charAt(pos));
+            if (j < 0) break;
+            state = targets[state][j];
+            pos++;
+        }
+        return res;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replace all matches of a regular expression. If the chunk is not the last one the last
+ * 'overlap' characters are held back, matches are not allowed to be longer. The same count of
+ * processed characters is used as context of the next chunk.
+ */
+public class RegexStage implements RewriteStage {
+
+    private final Pattern pattern;
+    private final Replacement replacement;
+    private final int overlap;
+    private final LongAdder matches;
+
+    public RegexStage(Pattern pattern, String replace, int overlap) {
+        this(pattern, replace, overlap, null);
+    }
+
+    /**
+     * Create the stage.
+     *
+     * @param pattern The regular expression
+     * @param replace The replacement
+     * @param overlap Maximum length of a match in streaming mode
+     * @param matches Counter of the replaced matches or null
+     */
+    public RegexStage(Pattern pattern, String replace, int overlap, LongAdder matches) {
+        this.pattern = pattern;
+        this.replacement = new Replacement(replace, pattern.matcher("").groupCount());
+        this.overlap = overlap;
+        this.matches = matches;
+    }
+
+    @Override
+    public int process(CharSequence in, boolean last, StringBuilder out) {
+        return process(in, 0, last, out);
+    }
+
+    @Override
+    public int process(CharSequence in, int start, boolean last, StringBuilder out) {
+        int len = in.length();
+        int limit = last ? len : Math.max(start, len - overlap);
+        Matcher m = pattern.matcher(in);
+        // boundaries and look-behind see the context, '^' does not match at the start of a chunk
+        if (start > 0) m.region(start, len).useTransparentBounds(true).useAnchoringBounds(false);
+        int pos = start;
+        while (m.find()) {
+            // a match in the held back tail or one that could grow with more input
+            // must be done with the next chunk
+            if (!last && (m.start() >= limit || m.hitEnd())) {
+                limit = Math.min(limit, m.start());
+                break;
+            }
+            out.append(in, pos, m.start());
+            replacement.append(m, out);
+            pos = m.end();
+            if (matches != null) matches.increment();
+        }
+        int consumed = Math.max(pos, limit);
+        out.append(in, pos, consumed);
+        return consumed - start;
+    }
+
+    @Override
+    public int getContext() {
+        return overlap;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    public Replacement getReplacement() {
+        return replacement;
+    }
+
+    public LongAdder getMatches() {
+        return matches;
+    }
+}
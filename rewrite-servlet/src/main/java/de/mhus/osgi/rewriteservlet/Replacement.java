@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * A parsed replacement string with the same syntax as Matcher.appendReplacement(). The string is
+ * parsed once and can be appended to a StringBuilder for every match.
+ */
+public class Replacement {
+
+    private final String[] literals;
+    private final int[] groups;
+    private final String[] names;
+
+    public Replacement(String replace, int groupCount) {
+        List<String> l = new ArrayList<>();
+        List<Integer> g = new ArrayList<>();
+        List<String> n = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        int pos = 0;
+        while (pos < replace.length()) {
+            char c = replace.charAt(pos);
+            if (c == '\\') {
+                pos++;
+                if (pos >= replace.length())
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                text.append(replace.charAt(pos));
+                pos++;
+            } else if (c == '$') {
+                pos++;
+                if (pos >= replace.length())
+                    throw new IllegalArgumentException("group index is missing");
+                l.add(text.toString());
+                text.setLength(0);
+                if (replace.charAt(pos) == '{') {
+                    int end = replace.indexOf('}', pos);
+                    if (end < 0) throw new IllegalArgumentException("missing trailing '}'");
+                    g.add(-1);
+                    n.add(replace.substring(pos + 1, end));
+                    pos = end + 1;
+                } else {
+                    int ref = replace.charAt(pos) - '0';
+                    if (ref < 0 || ref > 9)
+                        throw new IllegalArgumentException("Illegal group reference");
+                    pos++;
+                    // same as the jdk: take more digits as long as the group exists
+                    while (pos < replace.length()) {
+                        int next = replace.charAt(pos) - '0';
+                        if (next < 0 || next > 9) break;
+                        int ref2 = ref * 10 + next;
+                        if (ref2 > groupCount) break;
+                        ref = ref2;
+                        pos++;
+                    }
+                    if (ref > groupCount) throw new IndexOutOfBoundsException("No group " + ref);
+                    g.add(ref);
+                    n.add(null);
+                }
+            } else {
+                text.append(c);
+                pos++;
+            }
+        }
+        l.add(text.toString());
+        literals = l.toArray(new String[l.size()]);
+        groups = new int[g.size()];
+        for (int i = 0; i < groups.length; i++) groups[i] = g.get(i);
+        names = n.toArray(new String[n.size()]);
+    }
+
+    public void append(Matcher m, StringBuilder out) {
+        for (int i = 0; i < groups.length; i++) {
+            out.append(literals[i]);
+            String value = groups[i] < 0 ? m.group(names[i]) : m.group(groups[i]);
+            if (value != null) out.append(value);
+        }
+        out.append(literals[groups.length]);
+    }
+
+    /** Return true if the replacement contains no group references. */
+    public boolean isLiteral() {
+        return groups.length == 0;
+    }
+
+    /** Return the replacement text if it contains no group references. */
+    public String getLiteral() {
+        return isLiteral() ? literals[0] : null;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LRU cache of rewritten content for one configuration. The cache is bounded by the sum of the
+ * content sizes, the least recently used entries are removed first.
+ */
+public class RewriteCache {
+
+    private final long ttl;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    public RewriteCache(long ttl, long maxBytes, long maxEntryBytes) {
+        this.ttl = ttl;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    }
+
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        if (entry.size() > maxEntryBytes) {
+            remove(key);
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) bytes -= old.size();
+        bytes += entry.size();
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            Entry eldest = iter.next().getValue();
+            iter.remove();
+            bytes -= eldest.size();
+        }
+    }
+
+    public synchronized void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) bytes -= old.size();
+    }
+
+    /** Return true if the entry can be returned without asking the servlet. */
+    public boolean isFresh(Entry entry) {
+        return System.currentTimeMillis() - entry.created < ttl;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /** The rewritten content, the headers and the validators of the servlet response. */
+    public static class Entry {
+
+        private final String contentType;
+        private final byte[] content;
+        private final Map<String, List<String>> headers;
+        private final String etag;
+        private final String lastModified;
+        private final boolean encoded;
+        private final long created;
+
+        /**
+         * Create an entry.
+         *
+         * @param contentType Content type including the charset
+         * @param content The rewritten content
+         * @param headers Headers of the servlet response to send with the content
+         * @param etag ETag of the servlet response or null
+         * @param lastModified Last-Modified of the servlet response or null
+         * @param encoded true if the servlet has encoded the content, it will be encoded again
+         */
+        public Entry(
+                String contentType,
+                byte[] content,
+                Map<String, List<String>> headers,
+                String etag,
+                String lastModified,
+                boolean encoded) {
+            this.contentType = contentType;
+            this.content = content;
+            this.headers = copy(headers);
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.encoded = encoded;
+            this.created = System.currentTimeMillis();
+        }
+
+        private static Map<String, List<String>> copy(Map<String, List<String>> headers) {
+            Map<String, List<String>> res = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                List<String> values = new ArrayList<>(entry.getValue());
+                res.put(entry.getKey(), Collections.unmodifiableList(values));
+            }
+            return Collections.unmodifiableMap(res);
+        }
+
+        /**
+         * Return a copy of the entry valid from now on, after the servlet confirmed it.
+         *
+         * @param update Headers of the not modified response, they replace the cached ones
+         */
+        public Entry refresh(Map<String, List<String>> update) {
+            Map<String, List<String>> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            merged.putAll(headers);
+            merged.putAll(update);
+            return new Entry(
+                    contentType,
+                    content,
+                    merged,
+                    first(update, "ETag", etag),
+                    first(update, "Last-Modified", lastModified),
+                    encoded);
+        }
+
+        private static String first(Map<String, List<String>> map, String name, String def) {
+            List<String> values = map.get(name);
+            return values == null || values.isEmpty() ? def : values.get(0);
+        }
+
+        public boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        public long size() {
+            long size = content.length + 256;
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                for (String value : entry.getValue())
+                    size += entry.getKey().length() + value.length();
+            }
+            return size;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        /** Return the headers of the servlet response, the map is case insensitive. */
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isEncoded() {
+            return encoded;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.logging.Logger;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * One delegated request. The call is finished after the servlet returns or, if the servlet
+ * started async processing, when the async context completes.
+ */
+public class RewriteCall {
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static Logger log = Logger.getLogger(RewriteCall.class.getCanonicalName());
+    // headers of the servlet response not sent again with cached content
+    private static final Set<String> NOT_REPLAYED = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        NOT_REPLAYED.addAll(
+                Arrays.asList(
+                        "Vary",
+                        "Date",
+                        "Set-Cookie",
+                        "Connection",
+                        "Keep-Alive",
+                        "Transfer-Encoding",
+                        "Content-Type",
+                        "Content-Length",
+                        "Content-Encoding"));
+    }
+
+    private final RewriteConfig config;
+    private final String path;
+    private final String target;
+    private final HttpServletRequest req;
+    private final HttpServletResponse res;
+    private final DispatchedHttpServletRequest newRequest;
+    private final DispatchedHttpServletResponse newResponse;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final AtomicReference<Bulkhead> permit = new AtomicReference<>();
+    private final RewriteMetrics metrics;
+    private final long start = System.nanoTime();
+    private final boolean traced;
+    private String cacheKey;
+    private RewriteCache.Entry revalidate;
+
+    public RewriteCall(
+            RewriteConfig config,
+            String path,
+            String target,
+            HttpServletRequest req,
+            HttpServletResponse res) {
+        this.config = config;
+        this.path = path;
+        this.target = target;
+        this.req = req;
+        this.res = res;
+        metrics = config.getMetrics();
+        metrics.addRequest();
+        newResponse = new DispatchedHttpServletResponse(res);
+        // the body is only captured for sampled requests
+        traced = config.isTraced();
+        newRequest =
+                new DispatchedHttpServletRequest(
+                        path, req, traced ? config.getDebugMaxBody() : 0);
+        newRequest.setCompletion(
+                newResponse,
+                new DispatchedAsyncContext.Completion() {
+
+                    @Override
+                    public void complete() throws IOException {
+                        finish();
+                    }
+
+                    @Override
+                    public void abort() {
+                        RewriteCall.this.abort();
+                    }
+                });
+        newResponse.setAcceptEncoding(req.getHeader("Accept-Encoding"));
+        newResponse.setMaxCapture(config.getMaxCapture());
+        if (config.isStreaming())
+            newResponse.setStreaming(
+                    contentType -> config.getStages(path, contentType), config.getWindow());
+    }
+
+    /**
+     * Answer the request from the cache if the entry is fresh. A stale entry with validators is
+     * revalidated with a conditional request to the servlet.
+     *
+     * @return true if the response is written and the servlet must not be executed
+     */
+    public boolean serveCached() throws IOException {
+        RewriteCache cache = config.getCache();
+        if (cache == null
+                || !"GET".equals(req.getMethod())
+                || req.getHeader("Authorization") != null
+                || req.getHeader("Cookie") != null) return false;
+        String query = req.getQueryString();
+        cacheKey = query == null ? path : path + "?" + query;
+        RewriteCache.Entry entry = cache.get(cacheKey);
+        if (entry == null) return false;
+        if (cache.isFresh(entry)) {
+            log.fine("cached: " + config.getName() + " " + cacheKey);
+            metrics.addCacheHit();
+            writeCached(entry);
+            return true;
+        }
+        if (entry.hasValidator()) {
+            // the conditions of the client are not valid for the cached content
+            revalidate = entry;
+            newRequest.setHeader(IF_NONE_MATCH, entry.getEtag());
+            newRequest.setHeader(IF_MODIFIED_SINCE, entry.getLastModified());
+        }
+        return false;
+    }
+
+    private void writeCached(RewriteCache.Entry entry) throws IOException {
+        for (Map.Entry<String, List<String>> header : entry.getHeaders().entrySet()) {
+            if (NOT_REPLAYED.contains(header.getKey())) continue;
+            boolean first = true;
+            for (String value : header.getValue()) {
+                if (first) res.setHeader(header.getKey(), value);
+                else res.addHeader(header.getKey(), value);
+                first = false;
+            }
+        }
+        res.setContentType(entry.getContentType());
+        if (entry.getEtag() != null) res.setHeader("ETag", entry.getEtag());
+        if (entry.getLastModified() != null)
+            res.setHeader("Last-Modified", entry.getLastModified());
+        String match = req.getHeader(IF_NONE_MATCH);
+        if (match != null && entry.getEtag() != null && match.contains(entry.getEtag())) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        byte[] content = entry.getContent();
+        String encoding =
+                entry.isEncoded() ? ContentEncoding.select(req.getHeader("Accept-Encoding")) : null;
+        if (encoding == null) {
+            res.setContentLength(content.length);
+            res.getOutputStream().write(content);
+            return;
+        }
+        res.setHeader("Content-Encoding", encoding);
+        res.addHeader("Vary", "Accept-Encoding");
+        DeflaterOutputStream out = ContentEncoding.encode(res.getOutputStream(), encoding);
+        out.write(content);
+        out.finish();
+    }
+
+    // only public and complete answers for the request are shared with other clients
+    private boolean isCacheable() {
+        if (cacheKey == null || newResponse.getStatus() != HttpServletResponse.SC_OK) return false;
+        if (newResponse.hasCookies()) return false;
+        // the content depends on other request headers, the encoding is done by the call
+        for (String vary : newResponse.getHeaders("Vary")) {
+            for (String name : vary.split(",")) {
+                name = name.trim();
+                if (!name.isEmpty() && !name.equalsIgnoreCase("Accept-Encoding")) return false;
+            }
+        }
+        String control = newResponse.getHeader("Cache-Control");
+        return control == null || !(control.contains("no-store") || control.contains("private"));
+    }
+
+    /** The target of the call, e.g. a servlet or a request dispatcher. */
+    public interface Delegate {
+        void call(ServletRequest req, ServletResponse res) throws ServletException, IOException;
+    }
+
+    /** Execute the servlet. */
+    public void execute(Servlet servlet) throws ServletException, IOException {
+        execute(servlet::service);
+    }
+
+    /**
+     * Execute the target. The call is finished directly if the target do not start async
+     * processing.
+     */
+    public void execute(Delegate delegate) throws ServletException, IOException {
+        Bulkhead bulkhead = config.getBulkhead();
+        if (bulkhead != null) {
+            if (!bulkhead.acquire()) {
+                log.fine("rejected: " + config.getName() + " " + path);
+                metrics.addRejected();
+                res.setHeader("Retry-After", "1");
+                res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            permit.set(bulkhead);
+        }
+        try {
+            delegate.call(newRequest, newResponse);
+        } catch (ServletException | IOException | RuntimeException e) {
+            metrics.addError();
+            newResponse.release();
+            releasePermit();
+            throw e;
+        }
+        if (!newRequest.isDispatchedAsync()) finish();
+    }
+
+    // the permit is held until the async processing is done
+    private void releasePermit() {
+        Bulkhead bulkhead = permit.getAndSet(null);
+        if (bulkhead != null) bulkhead.release();
+    }
+
+    /**
+     * Release the call without rewriting, the request is dispatched again. The collected content is
+     * dropped and further content is written unchanged.
+     */
+    public void abort() {
+        if (!finished.compareAndSet(false, true)) return;
+        log.fine("dispatched: " + config.getName() + " " + path);
+        newResponse.passThrough();
+        releasePermit();
+    }
+
+    /** Rewrite the collected content and write it to the response, only the first call counts. */
+    public void finish() throws IOException {
+        if (!finished.compareAndSet(false, true)) return;
+        try {
+            complete();
+        } finally {
+            releasePermit();
+        }
+    }
+
+    private void complete() throws IOException {
+        // in streaming mode the time includes the rewrite
+        metrics.addDelegateTime(System.nanoTime() - start);
+
+        if (newResponse.isStreaming()) {
+            newResponse.finishStream();
+            metrics.addBytes(newResponse.getStreamedBytesIn(), newResponse.getStreamedBytesOut());
+            log.fine(
+                    "streamed: "
+                            + config.getServlet()
+                            + " "
+                            + path
+                            + " "
+                            + target
+                            + " "
+                            + newResponse.getContentType());
+            if (traced) trace("streamed");
+            return;
+        }
+
+        if (revalidate != null && newResponse.getStatus() == HttpServletResponse.SC_NOT_MODIFIED) {
+            newResponse.release();
+            RewriteCache.Entry entry = revalidate.refresh(newResponse.getServletHeaders());
+            config.getCache().put(cacheKey, entry);
+            log.fine("revalidated: " + config.getName() + " " + cacheKey);
+            // the recorded 304 response of the servlet is dropped
+            writeCached(entry);
+            return;
+        }
+
+        CaptureBuffer content = newResponse.getCapture();
+
+        log.fine(
+                "executed: "
+                        + config.getServlet()
+                        + " "
+                        + path
+                        + " "
+                        + target
+                        + " "
+                        + (content == null ? "null" : content.size())
+                        + " "
+                        + newResponse.getContentType());
+
+        if (content == null) {
+            if (newResponse.isCaptureExceeded())
+                log.fine("not rewritten, maxCapture exceeded: " + config.getName() + " " + path);
+            newResponse.applyServletHeaders();
+            return;
+        }
+
+        String text = null;
+        CaptureBuffer rewritten = null;
+        try {
+            String encoding = newResponse.getContentEncoding();
+            RewritePlan plan = config.getPlan(path, newResponse.getContentType());
+            long rewriteStart = System.nanoTime();
+            Charset charset = newResponse.getCharset();
+            String decoded = null;
+            if (!plan.isEmpty() && ContentEncoding.isSupported(encoding)) {
+                decoded =
+                        ContentEncoding.isIdentity(encoding)
+                                ? content.toString(charset)
+                                : read(
+                                        ContentEncoding.decode(content.getInputStream(), encoding),
+                                        charset);
+                text = plan.rewrite(decoded);
+            }
+            // unchanged content is only encoded again to be cached
+            if (decoded == null || text == decoded && !isCacheable()) {
+                // nothing to rewrite, no need to decode and encode again
+                if (decoded != null) metrics.addRewriteTime(System.nanoTime() - rewriteStart);
+                newResponse.applyEntityHeaders(content.size());
+                content.writeTo(res.getOutputStream());
+                metrics.addBytes(content.size(), content.size());
+            } else {
+                // encode into a buffer to send the real Content-Length with the headers
+                rewritten = new CaptureBuffer();
+                OutputStream out = newResponse.encodeRewritten(rewritten);
+                if (isCacheable()) {
+                    byte[] bytes = text.getBytes(charset);
+                    config.getCache()
+                            .put(
+                                    cacheKey,
+                                    new RewriteCache.Entry(
+                                            newResponse.getContentType(),
+                                            bytes,
+                                            newResponse.getServletHeaders(),
+                                            newResponse.getHeader("ETag"),
+                                            newResponse.getHeader("Last-Modified"),
+                                            !ContentEncoding.isIdentity(encoding)));
+                    revalidate = null;
+                    out.write(bytes);
+                } else {
+                    Writer writer = new OutputStreamWriter(out, charset);
+                    writer.write(text);
+                    writer.flush();
+                }
+                newResponse.finishRewrittenStream();
+                metrics.addRewriteTime(System.nanoTime() - rewriteStart);
+                metrics.addBytes(content.size(), rewritten.size());
+                newResponse.applyRewrittenHeaders(rewritten.size());
+                rewritten.writeTo(res.getOutputStream());
+            }
+        } finally {
+            newResponse.release();
+            if (rewritten != null) rewritten.release();
+            // the servlet has not confirmed the cached content
+            if (revalidate != null) config.getCache().remove(cacheKey);
+        }
+
+        if (traced) trace(text);
+    }
+
+    private void trace(String out) {
+        TraceWriter.add(
+                new RewriteTrace(
+                        config.getName(),
+                        path,
+                        req,
+                        newRequest.getInputBytes(),
+                        out,
+                        config.getDebugMaxBody()));
+    }
+
+    private static String read(InputStream is, Charset charset) throws IOException {
+        StringBuilder out = new StringBuilder();
+        try (Reader reader = new InputStreamReader(is, charset)) {
+            char[] buf = new char[8192];
+            int n;
+            while ((n = reader.read(buf)) >= 0) out.append(buf, 0, n);
+        }
+        return out.toString();
+    }
+}
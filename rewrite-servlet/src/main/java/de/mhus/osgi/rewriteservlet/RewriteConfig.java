@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** The parsed and precompiled rewrite configuration for one name. */
+public class RewriteConfig {
+
+    private static final int MAX_CONTENT_TYPES = 256;
+    private static final int MAX_STAGE_SETS = 256;
+
+    private final String name;
+    private final String servlet;
+    private final boolean dispatcher;
+    private final Upstream upstream;
+    private final boolean debug;
+    private final int debugMaxBody;
+    private final int debugSample;
+    private final boolean streaming;
+    private final int window;
+    private final int overlap;
+    private final long maxCapture;
+    private final List<RewriteRule> rules;
+    private final RewriteRule[] rulesByIndex;
+    private final PathTrie pathRules;
+    private final RewriteCache cache;
+    private final Bulkhead bulkhead;
+    private final RewriteMetrics metrics;
+    private final ConcurrentHashMap<String, BitSet> contentTypeRules =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<BitSet, RewritePlan> plans = new ConcurrentHashMap<>();
+
+    public RewriteConfig(
+            String name,
+            String servlet,
+            boolean dispatcher,
+            Upstream upstream,
+            boolean debug,
+            int debugMaxBody,
+            int debugSample,
+            boolean streaming,
+            int window,
+            int overlap,
+            long maxCapture,
+            List<RewriteRule> rules,
+            RewriteCache cache,
+            Bulkhead bulkhead) {
+        this.name = name;
+        this.servlet = servlet;
+        this.dispatcher = dispatcher;
+        this.upstream = upstream;
+        this.debug = debug;
+        this.debugMaxBody = debugMaxBody;
+        this.debugSample = debugSample;
+        this.streaming = streaming;
+        this.window = window;
+        this.overlap = overlap;
+        this.maxCapture = maxCapture;
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        int size = 0;
+        for (RewriteRule rule : rules) size = Math.max(size, rule.getIndex() + 1);
+        rulesByIndex = new RewriteRule[size];
+        String[] prefixes = new String[size];
+        for (RewriteRule rule : rules) {
+            rulesByIndex[rule.getIndex()] = rule;
+            prefixes[rule.getIndex()] = rule.getPathPrefix();
+        }
+        pathRules = new PathTrie(prefixes);
+        this.cache = cache;
+        this.bulkhead = bulkhead;
+        this.metrics = RewriteMetrics.get(name);
+        metrics.setBulkhead(bulkhead);
+    }
+
+    /** Return the rules to execute for the path and content type in the configured order. */
+    public List<RewriteStage> getStages(String path, String contentType) {
+        return getPlan(path, contentType).getStages();
+    }
+
+    /** Return the compiled rules for the path and content type. */
+    public RewritePlan getPlan(String path, String contentType) {
+        // only rules with a prefix of the path are candidates, the regex is checked for them
+        BitSet selected = pathRules.find(path);
+        selected.and(getRuleSet(contentType));
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+            if (!rulesByIndex[i].matchesPath(path)) selected.clear(i);
+        }
+        if (selected.isEmpty()) return RewritePlan.EMPTY;
+        // the same rules are selected again and again, reuse the compiled stages
+        RewritePlan plan = plans.get(selected);
+        if (plan == null) {
+            List<RewriteRule> list = new ArrayList<>();
+            for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1))
+                list.add(rulesByIndex[i]);
+            plan = new RewritePlan(list);
+            if (plans.size() < MAX_STAGE_SETS) plans.putIfAbsent(selected, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Create the stages for the rules. Following plain text rules are joined to one literal stage
+     * if possible, all other rules are executed as regular expression.
+     */
+    public static List<RewriteStage> compile(List<RewriteRule> rules) {
+        return new RewritePlan(rules).getStages();
+    }
+
+    // return the indexes of the rules matching the content type, the decision is cached
+    private BitSet getRuleSet(String contentType) {
+        if (contentType == null) contentType = "";
+        BitSet res = contentTypeRules.get(contentType);
+        if (res != null) return res;
+        res = new BitSet();
+        for (RewriteRule rule : rules) {
+            if (rule.matchesContentType(contentType)) res.set(rule.getIndex());
+        }
+        // content types are send by the servlet, do not trust the count of different values
+        if (contentTypeRules.size() < MAX_CONTENT_TYPES) contentTypeRules.put(contentType, res);
+        return res;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getServlet() {
+        return servlet;
+    }
+
+    /** Return true if the servlet is called with the request dispatcher of the servlet context. */
+    public boolean isDispatcher() {
+        return dispatcher;
+    }
+
+    /** Return the HTTP server to proxy or null if a servlet is called. */
+    public Upstream getUpstream() {
+        return upstream;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /** Return the maximum count of body bytes to capture for debugging, 0 if disabled. */
+    public int getDebugMaxBody() {
+        return debug ? debugMaxBody : 0;
+    }
+
+    /** Decide if a request is traced, if debug is enabled one of 'debugSample' requests is. */
+    public boolean isTraced() {
+        if (!debug) return false;
+        return debugSample <= 1 || ThreadLocalRandom.current().nextInt(debugSample) == 0;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getOverlap() {
+        return overlap;
+    }
+
+    /** Return the maximum size of content collected for a rewrite, 0 if unlimited. */
+    public long getMaxCapture() {
+        return maxCapture;
+    }
+
+    public List<RewriteRule> getRules() {
+        return rules;
+    }
+
+    public RewriteMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Return the limit of concurrent requests or null if not limited. */
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /** Return the cache of rewritten content or null if caching is disabled. */
+    public RewriteCache getCache() {
+        return cache;
+    }
+}
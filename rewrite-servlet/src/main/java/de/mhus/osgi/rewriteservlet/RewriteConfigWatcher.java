@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Load the rewrite configuration once for all servlet instances and watch the file for changes.
+ * A changed file is loaded into a new configuration table which replaces the current one.
+ * Requests hold the table they started with.
+ */
+public class RewriteConfigWatcher implements Runnable {
+
+    private static final File CONFIG_FILE = new File("etc/rewriteservlet.properties");
+    // wait for more events of the same change, editors write files in multiple steps
+    private static final long SETTLE_TIME = 200;
+    private static Logger log = Logger.getLogger(RewriteConfigWatcher.class.getCanonicalName());
+
+    private static RewriteConfigWatcher instance;
+    private static int usage;
+
+    private final File file;
+    private final AtomicReference<RewriteConfiguration> configuration = new AtomicReference<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    /** Return the shared watcher, the watcher is started with the first usage. */
+    public static synchronized RewriteConfigWatcher acquire() {
+        if (instance == null) {
+            instance = new RewriteConfigWatcher(CONFIG_FILE);
+            instance.start();
+        }
+        usage++;
+        return instance;
+    }
+
+    /** Release the watcher, it's stopped with the last usage. */
+    public static synchronized void release(RewriteConfigWatcher watcher) {
+        if (watcher == null || watcher != instance) return;
+        usage--;
+        if (usage <= 0) {
+            instance.stop();
+            instance = null;
+            RewriteMetrics.clear();
+            TraceWriter.stop();
+            usage = 0;
+        }
+    }
+
+    private RewriteConfigWatcher(File file) {
+        this.file = file.getAbsoluteFile();
+        reload();
+    }
+
+    public RewriteConfiguration getConfiguration() {
+        return configuration.get();
+    }
+
+    public void reload() {
+        configuration.set(RewriteConfiguration.load(file, configuration.get()));
+    }
+
+    private void start() {
+        File dir = file.getParentFile();
+        if (dir == null || !dir.isDirectory()) {
+            log.warning("can't watch configuration, directory not found: " + dir);
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            dir.toPath()
+                    .register(
+                            watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            log.warning("can't watch configuration: " + e);
+            return;
+        }
+        thread = new Thread(this, "rewriteservlet-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void stop() {
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.fine(e.toString());
+        }
+        thread.interrupt();
+        thread = null;
+        watchService = null;
+    }
+
+    @Override
+    public void run() {
+        WatchService ws = watchService;
+        Path name = file.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                boolean changed = isChanged(key, name);
+                // collect the rest of the change
+                while (changed) {
+                    Thread.sleep(SETTLE_TIME);
+                    WatchKey next = ws.poll();
+                    if (next == null) break;
+                    isChanged(next, name);
+                }
+                if (changed) {
+                    log.info("reload " + file);
+                    reload();
+                }
+                if (!key.isValid()) {
+                    log.warning("configuration directory is not longer watched");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private static boolean isChanged(WatchKey key, Path name) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (name.equals(event.context())) changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+}
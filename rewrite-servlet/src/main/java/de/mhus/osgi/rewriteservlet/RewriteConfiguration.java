@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable table of all rewrite configurations parsed from the properties. A new table is
+ * created if the properties change, the table itself will never be modified. The concurrency
+ * limits of the previous table are taken over and resized, so requests still running with the
+ * previous configuration are counted.
+ */
+public class RewriteConfiguration {
+
+    public static final int DEFAULT_WINDOW = 65536;
+    public static final int DEFAULT_OVERLAP = 1024;
+    public static final int DEFAULT_DEBUG_MAX_BODY = 65536;
+    public static final int DEFAULT_MAX_CAPTURE = 32 * 1024 * 1024;
+    public static final int DEFAULT_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_CACHE_MAX_ENTRY = 1024 * 1024;
+    public static final int DEFAULT_UPSTREAM_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_UPSTREAM_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_UPSTREAM_READ_TIMEOUT = 60000;
+    public static final int DEFAULT_QUEUE_TIMEOUT = 1000;
+    private static final String MATCH_ALL = ".*";
+    private static Logger log = Logger.getLogger(RewriteConfiguration.class.getCanonicalName());
+
+    private final Map<String, RewriteConfig> configs;
+
+    public RewriteConfiguration(Properties props) {
+        this(props, null);
+    }
+
+    /**
+     * Parse the properties.
+     *
+     * @param props The configuration properties
+     * @param previous The former table, the limits with the same name are reused, or null
+     */
+    public RewriteConfiguration(Properties props, RewriteConfiguration previous) {
+        Map<String, RewriteConfig> map = new HashMap<>();
+        Map<String, RewriteConfig> former =
+                previous == null ? Collections.<String, RewriteConfig>emptyMap() : previous.configs;
+        for (String key : props.stringPropertyNames()) {
+            String name;
+            if (key.endsWith(".servlet")) name = key.substring(0, key.length() - 8);
+            else if (key.endsWith(".upstream")) name = key.substring(0, key.length() - 9);
+            else continue;
+            if (!map.containsKey(name)) map.put(name, parse(name, props, former.get(name)));
+        }
+        configs = Collections.unmodifiableMap(map);
+    }
+
+    private static RewriteConfig parse(String name, Properties props, RewriteConfig previous) {
+        int overlap = toInt(props.getProperty(name + ".overlap"), DEFAULT_OVERLAP);
+        int window =
+                Math.max(toInt(props.getProperty(name + ".window"), DEFAULT_WINDOW), 2 * overlap);
+        RewriteMetrics metrics = RewriteMetrics.get(name);
+        List<RewriteRule> rules = new ArrayList<>();
+        for (int cnt = 0; props.getProperty(name + cnt + ".rule") != null; cnt++) {
+            String prefix = name + cnt;
+            try {
+                rules.add(
+                        new RewriteRule(
+                                cnt,
+                                compile(props.getProperty(prefix + ".path", MATCH_ALL)),
+                                compile(props.getProperty(prefix + ".contentType", MATCH_ALL)),
+                                new RegexStage(
+                                        Pattern.compile(props.getProperty(prefix + ".rule")),
+                                        props.getProperty(prefix + ".replace", ""),
+                                        overlap,
+                                        metrics.getRuleCounter(cnt))));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                log.warning("ignore rule " + prefix + ": " + e);
+            }
+        }
+        boolean streaming = props.getProperty(name + ".streaming", "").equals("true");
+        int cacheTtl = toInt(props.getProperty(name + ".cacheTtl"), 0);
+        RewriteCache cache = null;
+        // streamed content is never complete in memory, it can't be cached
+        if (cacheTtl > 0 && !streaming)
+            cache =
+                    new RewriteCache(
+                            cacheTtl,
+                            toInt(
+                                    props.getProperty(name + ".cacheMaxBytes"),
+                                    DEFAULT_CACHE_MAX_BYTES),
+                            toInt(
+                                    props.getProperty(name + ".cacheMaxEntry"),
+                                    DEFAULT_CACHE_MAX_ENTRY));
+        int maxConcurrent = toInt(props.getProperty(name + ".maxConcurrent"), 0);
+        Bulkhead bulkhead = previous == null ? null : previous.getBulkhead();
+        if (maxConcurrent <= 0) {
+            bulkhead = null;
+        } else {
+            int maxQueue = toInt(props.getProperty(name + ".maxQueue"), maxConcurrent);
+            int queueTimeout =
+                    toInt(props.getProperty(name + ".queueTimeout"), DEFAULT_QUEUE_TIMEOUT);
+            if (bulkhead == null) bulkhead = new Bulkhead(maxConcurrent, maxQueue, queueTimeout);
+            else bulkhead.resize(maxConcurrent, maxQueue, queueTimeout);
+        }
+        String url = props.getProperty(name + ".upstream");
+        Upstream upstream =
+                url == null
+                        ? null
+                        : new Upstream(
+                                url,
+                                previous == null ? null : previous.getUpstream(),
+                                toInt(
+                                        props.getProperty(name + ".upstreamMaxConnections"),
+                                        DEFAULT_UPSTREAM_MAX_CONNECTIONS),
+                                toInt(
+                                        props.getProperty(name + ".upstreamConnectTimeout"),
+                                        DEFAULT_UPSTREAM_CONNECT_TIMEOUT),
+                                toInt(
+                                        props.getProperty(name + ".upstreamReadTimeout"),
+                                        DEFAULT_UPSTREAM_READ_TIMEOUT));
+        return new RewriteConfig(
+                name,
+                props.getProperty(name + ".servlet"),
+                props.getProperty(name + ".dispatch", "service").equals("dispatcher"),
+                upstream,
+                props.getProperty(name + ".debug", "").equals("true"),
+                toInt(props.getProperty(name + ".debugMaxBody"), DEFAULT_DEBUG_MAX_BODY),
+                toInt(props.getProperty(name + ".debugSample"), 1),
+                streaming,
+                window,
+                overlap,
+                toInt(props.getProperty(name + ".maxCapture"), DEFAULT_MAX_CAPTURE),
+                rules,
+                cache,
+                bulkhead);
+    }
+
+    private static Pattern compile(String regex) {
+        if (regex.equals(MATCH_ALL)) return null;
+        return Pattern.compile(regex);
+    }
+
+    public RewriteConfig getConfig(String name) {
+        return configs.get(name);
+    }
+
+    public Map<String, RewriteConfig> getConfigs() {
+        return configs;
+    }
+
+    public static RewriteConfiguration load(File f) {
+        return load(f, null);
+    }
+
+    /** Load the properties file, the limits of the previous table are reused. */
+    public static RewriteConfiguration load(File f, RewriteConfiguration previous) {
+        Properties props = new Properties();
+        if (f.exists()) {
+            try (FileInputStream is = new FileInputStream(f)) {
+                props.load(is);
+            } catch (IOException e) {
+                log.warning(e.toString());
+            }
+        }
+        return new RewriteConfiguration(props, previous);
+    }
+
+    static int toInt(String value, int def) {
+        if (value == null) return def;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warning("not a number: " + value);
+            return def;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Lock free counters of one rewrite configuration. The metrics are registered by the name of the
+ * configuration and survive a reload of the configuration file. Every instance is registered as
+ * MBean 'de.mhus.osgi.rewriteservlet:type=RewriteMetrics,name=[config]'.
+ */
+public class RewriteMetrics implements RewriteMetricsMBean {
+
+    private static final String DOMAIN = "de.mhus.osgi.rewriteservlet";
+    private static Logger log = Logger.getLogger(RewriteMetrics.class.getCanonicalName());
+    private static final ConcurrentHashMap<String, RewriteMetrics> registry =
+            new ConcurrentHashMap<>();
+
+    private final String name;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram delegateTime = new LatencyHistogram();
+    private final LatencyHistogram rewriteTime = new LatencyHistogram();
+    private final ConcurrentHashMap<Integer, LongAdder> ruleMatches = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+    private volatile Bulkhead bulkhead;
+
+    /** Return the metrics of the configuration, they are created with the first usage. */
+    public static RewriteMetrics get(String name) {
+        RewriteMetrics metrics = registry.get(name);
+        if (metrics != null) return metrics;
+        metrics = new RewriteMetrics(name);
+        RewriteMetrics current = registry.putIfAbsent(name, metrics);
+        if (current != null) return current;
+        metrics.register();
+        return metrics;
+    }
+
+    /** Return all metrics sorted by the name of the configuration. */
+    public static List<RewriteMetrics> getAll() {
+        List<RewriteMetrics> list = new ArrayList<>(registry.values());
+        Collections.sort(list, (a, b) -> a.name.compareTo(b.name));
+        return list;
+    }
+
+    /** Remove all metrics and the MBeans. */
+    public static void clear() {
+        for (RewriteMetrics metrics : registry.values()) metrics.unregister();
+        registry.clear();
+    }
+
+    private RewriteMetrics(String name) {
+        this.name = name;
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName =
+                    new ObjectName(
+                            DOMAIN + ":type=RewriteMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        } catch (JMException | RuntimeException e) {
+            log.fine("can't register metrics " + name + ": " + e);
+            objectName = null;
+        }
+    }
+
+    private void unregister() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException | RuntimeException e) {
+            log.fine("can't unregister metrics " + name + ": " + e);
+        }
+        objectName = null;
+    }
+
+    /** Return the match counter of the rule, the counter is added by the stage of the rule. */
+    public LongAdder getRuleCounter(int index) {
+        return ruleMatches.computeIfAbsent(index, i -> new LongAdder());
+    }
+
+    public void addRequest() {
+        requests.increment();
+    }
+
+    public void addError() {
+        errors.increment();
+    }
+
+    public void addCacheHit() {
+        cacheHits.increment();
+    }
+
+    public void addRejected() {
+        rejected.increment();
+    }
+
+    /** Set the limit of the current configuration to show the active and queued requests. */
+    public void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+
+    /**
+     * Add the transferred bytes of a request.
+     *
+     * @param in Bytes written by the servlet
+     * @param out Bytes written to the client
+     */
+    public void addBytes(long in, long out) {
+        bytesIn.add(in);
+        bytesOut.add(out);
+    }
+
+    public void addDelegateTime(long nanos) {
+        delegateTime.record(nanos / 1000);
+    }
+
+    public void addRewriteTime(long nanos) {
+        rewriteTime.record(nanos / 1000);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getDelegateTime() {
+        return delegateTime;
+    }
+
+    public LatencyHistogram getRewriteTime() {
+        return rewriteTime;
+    }
+
+    /** Return the match count by rule index. */
+    public Map<Integer, Long> getRuleMatchCounts() {
+        Map<Integer, Long> map = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : ruleMatches.entrySet())
+            map.put(entry.getKey(), entry.getValue().sum());
+        return map;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int getActive() {
+        Bulkhead b = bulkhead;
+        return b == null ? 0 : b.getActive();
+    }
+
+    @Override
+    public int getQueued() {
+        Bulkhead b = bulkhead;
+        return b == null ? 0 : b.getQueued();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getDelegateMean() {
+        return delegateTime.getMean();
+    }
+
+    @Override
+    public long getDelegateP50() {
+        return delegateTime.getPercentile(50);
+    }
+
+    @Override
+    public long getDelegateP99() {
+        return delegateTime.getPercentile(99);
+    }
+
+    @Override
+    public long getDelegateMax() {
+        return delegateTime.getMax();
+    }
+
+    @Override
+    public double getRewriteMean() {
+        return rewriteTime.getMean();
+    }
+
+    @Override
+    public long getRewriteP50() {
+        return rewriteTime.getPercentile(50);
+    }
+
+    @Override
+    public long getRewriteP99() {
+        return rewriteTime.getPercentile(99);
+    }
+
+    @Override
+    public long getRewriteMax() {
+        return rewriteTime.getMax();
+    }
+
+    @Override
+    public String[] getRuleMatches() {
+        List<String> list = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : getRuleMatchCounts().entrySet())
+            list.add(entry.getKey() + "=" + entry.getValue());
+        return list.toArray(new String[list.size()]);
+    }
+}
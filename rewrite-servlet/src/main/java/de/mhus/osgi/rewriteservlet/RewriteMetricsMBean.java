@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+/** JMX view of the metrics of one rewrite configuration, times are in microseconds. */
+public interface RewriteMetricsMBean {
+
+    long getRequests();
+
+    long getErrors();
+
+    long getCacheHits();
+
+    long getRejected();
+
+    /** Return the count of requests executed at the moment. */
+    int getActive();
+
+    /** Return the count of requests waiting for execution. */
+    int getQueued();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getDelegateMean();
+
+    long getDelegateP50();
+
+    long getDelegateP99();
+
+    long getDelegateMax();
+
+    double getRewriteMean();
+
+    long getRewriteP50();
+
+    long getRewriteP99();
+
+    long getRewriteMax();
+
+    /** Return the match count of each rule as 'index=count'. */
+    String[] getRuleMatches();
+}
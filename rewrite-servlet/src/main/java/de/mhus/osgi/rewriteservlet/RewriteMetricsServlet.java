@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.osgi.service.component.annotations.Component;
+
+/** Plain text metrics of all rewrite configurations in the Prometheus text format. */
+@Component(service = Servlet.class, property = "alias=/system/rewrite/metrics")
+public class RewriteMetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException {
+        res.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter out = res.getWriter();
+        for (RewriteMetrics metrics : RewriteMetrics.getAll()) {
+            String label = "{config=\"" + escape(metrics.getName()) + "\"";
+            print(out, "rewrite_requests_total", label, metrics.getRequests());
+            print(out, "rewrite_errors_total", label, metrics.getErrors());
+            print(out, "rewrite_cache_hits_total", label, metrics.getCacheHits());
+            print(out, "rewrite_rejected_total", label, metrics.getRejected());
+            print(out, "rewrite_active", label, metrics.getActive());
+            print(out, "rewrite_queued", label, metrics.getQueued());
+            print(out, "rewrite_bytes_in_total", label, metrics.getBytesIn());
+            print(out, "rewrite_bytes_out_total", label, metrics.getBytesOut());
+            printHistogram(out, "rewrite_delegate_seconds", label, metrics.getDelegateTime());
+            printHistogram(out, "rewrite_rewrite_seconds", label, metrics.getRewriteTime());
+            for (Map.Entry<Integer, Long> entry : metrics.getRuleMatchCounts().entrySet())
+                print(
+                        out,
+                        "rewrite_rule_matches_total",
+                        label + ",rule=\"" + entry.getKey() + "\"",
+                        entry.getValue());
+        }
+        out.println("rewrite_trace_dropped_total " + TraceWriter.getDropped());
+        out.flush();
+    }
+
+    private static void printHistogram(
+            PrintWriter out, String name, String label, LatencyHistogram histogram) {
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999})
+            out.println(
+                    name
+                            + label
+                            + ",quantile=\""
+                            + quantile
+                            + "\"} "
+                            + histogram.getPercentile(quantile * 100) / 1000000.0);
+        out.println(name + "_max" + label + "} " + histogram.getMax() / 1000000.0);
+        out.println(name + "_sum" + label + "} " + histogram.getSum() / 1000000.0);
+        out.println(name + "_count" + label + "} " + histogram.getCount());
+    }
+
+    private static void print(PrintWriter out, String name, String label, long value) {
+        out.println(name + label + "} " + value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.mhus.osgi.regexutil.LiteralMatcher;
+
+/**
+ * The compiled stages of a set of rules. Every stage knows the anchors of its rules, a text one of
+ * them must contain. Before the content is rewritten it's scanned once for all anchors and stages
+ * without an anchor in the content are skipped. If nothing is to rewrite only the scan is done.
+ */
+public class RewritePlan {
+
+    public static final RewritePlan EMPTY = new RewritePlan(Collections.emptyList());
+
+    // up to this count the anchors are searched one by one with the intrinsic String.indexOf()
+    private static final int MAX_INDEX_OF = 8;
+
+    private final List<RewriteStage> stages;
+    private final int[][] stageAnchors;
+    private final String[] anchors;
+    private final LiteralMatcher matcher;
+
+    /**
+     * Create the stages for the rules. Following plain text rules are joined to one literal stage
+     * if possible, all other rules are executed as regular expression.
+     */
+    public RewritePlan(List<RewriteRule> rules) {
+        List<RewriteStage> stageList = new ArrayList<>();
+        List<List<String>> anchorList = new ArrayList<>();
+        List<String> literals = new ArrayList<>();
+        List<String> replacements = new ArrayList<>();
+        List<LongAdder> matches = new ArrayList<>();
+        for (RewriteRule rule : rules) {
+            String literal = rule.getLiteral();
+            if (literal != null && LiteralStage.canJoin(literals, replacements, literal)) {
+                literals.add(literal);
+                replacements.add(rule.getLiteralReplacement());
+                matches.add(rule.getStage().getMatches());
+                continue;
+            }
+            if (!literals.isEmpty()) {
+                stageList.add(new LiteralStage(literals, replacements, matches));
+                anchorList.add(new ArrayList<>(literals));
+                literals.clear();
+                replacements.clear();
+                matches.clear();
+            }
+            if (literal != null) {
+                literals.add(literal);
+                replacements.add(rule.getLiteralReplacement());
+                matches.add(rule.getStage().getMatches());
+            } else {
+                stageList.add(rule.getStage());
+                String anchor = rule.getAnchor();
+                anchorList.add(anchor == null ? null : Collections.singletonList(anchor));
+            }
+        }
+        if (!literals.isEmpty()) {
+            stageList.add(new LiteralStage(literals, replacements, matches));
+            anchorList.add(new ArrayList<>(literals));
+        }
+        stages = Collections.unmodifiableList(stageList);
+
+        // every anchor is searched only once for all stages
+        Map<String, Integer> index = new LinkedHashMap<>();
+        stageAnchors = new int[stageList.size()][];
+        for (int i = 0; i < stageAnchors.length; i++) {
+            List<String> list = anchorList.get(i);
+            if (list == null) continue;
+            stageAnchors[i] = new int[list.size()];
+            for (int j = 0; j < list.size(); j++) {
+                Integer n = index.get(list.get(j));
+                if (n == null) {
+                    n = index.size();
+                    index.put(list.get(j), n);
+                }
+                stageAnchors[i][j] = n;
+            }
+        }
+        anchors = index.keySet().toArray(new String[index.size()]);
+        matcher = anchors.length > MAX_INDEX_OF ? new LiteralMatcher(anchors) : null;
+    }
+
+    public List<RewriteStage> getStages() {
+        return stages;
+    }
+
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    /**
+     * Rewrite the whole content in one step. Stages without anchor in the content are skipped. A
+     * stage can create the anchor of a following one, after the first executed stage the anchors
+     * of the following stages are searched in the rewritten content.
+     *
+     * @param content The content to rewrite
+     * @return The rewritten content or the same instance if no stage was executed
+     */
+    public String rewrite(String content) {
+        if (stages.isEmpty()) return content;
+        boolean[] found = scan(content);
+        boolean changed = false;
+        StringBuilder out = null;
+        for (int i = 0; i < stageAnchors.length; i++) {
+            if (stageAnchors[i] != null && !contains(stageAnchors[i], found, changed, content))
+                continue;
+            if (out == null) out = new StringBuilder(content.length() + 256);
+            else out.setLength(0);
+            stages.get(i).process(content, true, out);
+            content = out.toString();
+            changed = true;
+        }
+        return content;
+    }
+
+    private boolean contains(int[] indexes, boolean[] found, boolean changed, String content) {
+        for (int i : indexes) {
+            if (found[i] || changed && content.indexOf(anchors[i]) >= 0) return true;
+        }
+        return false;
+    }
+
+    // return which anchors are contained in the content
+    private boolean[] scan(String content) {
+        boolean[] found = new boolean[anchors.length];
+        if (matcher == null) {
+            for (int i = 0; i < anchors.length; i++) found[i] = content.indexOf(anchors[i]) >= 0;
+            return found;
+        }
+        int missing = anchors.length;
+        int state = 0;
+        for (int pos = 0; pos < content.length(); pos++) {
+            state = matcher.next(state, content.charAt(pos));
+            int s = matcher.getOutput(state) >= 0 ? state : matcher.getDictionary(state);
+            for (; s > 0; s = matcher.getDictionary(s)) {
+                int literal = matcher.getOutput(s);
+                if (found[literal]) continue;
+                found[literal] = true;
+                // stop as soon as all anchors are found
+                if (--missing == 0) return found;
+            }
+        }
+        return found;
+    }
+}
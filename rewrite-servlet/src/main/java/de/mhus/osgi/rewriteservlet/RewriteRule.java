@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.regex.Pattern;
+
+import de.mhus.osgi.regexutil.RegexText;
+
+/** A precompiled rule of a rewrite configuration. */
+public class RewriteRule {
+
+    private final int index;
+    private final Pattern path;
+    private final Pattern contentType;
+    private final RegexStage stage;
+    private final String literal;
+    private final String literalReplacement;
+    private final String pathPrefix;
+    private final String anchor;
+
+    public RewriteRule(int index, Pattern path, Pattern contentType, RegexStage stage) {
+        this.index = index;
+        this.path = path;
+        this.contentType = contentType;
+        this.stage = stage;
+        String l = toLiteral(stage.getPattern());
+        String r = stage.getReplacement().getLiteral();
+        literal = l == null || r == null ? null : l;
+        literalReplacement = literal == null ? null : r;
+        pathPrefix = toPrefix(path);
+        anchor = toAnchor(stage.getPattern());
+    }
+
+    /**
+     * Return the text all matches of the pattern start with. The prefix is empty if the pattern
+     * is null or the start is not plain text.
+     */
+    public static String toPrefix(Pattern pattern) {
+        if (pattern == null || pattern.flags() != 0) return "";
+        return RegexText.toPrefix(pattern.pattern());
+    }
+
+    /**
+     * Return the longest plain text every match of the pattern contains or null. Text in groups,
+     * classes and characters followed by an optional quantifier is not used.
+     */
+    public static String toAnchor(Pattern pattern) {
+        if (pattern.flags() != 0) return null;
+        return RegexText.toAnchor(pattern.pattern());
+    }
+
+    /** Return the text if the regex is matching a plain text only, otherwise null. */
+    public static String toLiteral(Pattern pattern) {
+        if (pattern.flags() != 0) return null;
+        return RegexText.toLiteral(pattern.pattern());
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /** Return the text all matching paths start with, can be empty. */
+    public String getPathPrefix() {
+        return pathPrefix;
+    }
+
+    /** Return a text all matches contain or null if unknown. */
+    public String getAnchor() {
+        return anchor;
+    }
+
+    public boolean matchesPath(String value) {
+        return path == null || path.matcher(value).matches();
+    }
+
+    public boolean matchesContentType(String value) {
+        return contentType == null || contentType.matcher(value).matches();
+    }
+
+    public RegexStage getStage() {
+        return stage;
+    }
+
+    /** Return the text to search if the rule is a plain text rule, otherwise null. */
+    public String getLiteral() {
+        return literal;
+    }
+
+    public String getLiteralReplacement() {
+        return literalReplacement;
+    }
+}
@@ -15,48 +15,56 @@
  */
 package de.mhus.osgi.rewriteservlet;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
+import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.osgi.framework.BundleContext;
-import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.ServiceReference;
-
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 
 /*
 
 
 */
-@Component(service = Servlet.class, property = "alias=/rewrite/*", servicefactory = true)
+@Component(
+        service = Servlet.class,
+        property = {"alias=/rewrite/*", "osgi.http.whiteboard.servlet.asyncSupported=true"},
+        servicefactory = true)
 public class RewriteServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
     private static Logger log = Logger.getLogger(RewriteServlet.class.getCanonicalName());
-    private Properties props;
+    private RewriteConfigWatcher watcher;
+    private ServletTracker tracker;
+    private final ConcurrentHashMap<String, RequestDispatcher> dispatchers =
+            new ConcurrentHashMap<>();
+
+    public RewriteServlet() {}
+
+    @Activate
+    public void activate(ComponentContext ctx) {
+        watcher = RewriteConfigWatcher.acquire();
+        tracker = new ServletTracker(ctx.getBundleContext(), ctx.getServiceReference());
+        tracker.open();
+    }
 
-    public RewriteServlet() {
-        props = new Properties();
-        File f = new File("etc/rewriteservlet.properties");
-        if (f.exists()) {
-            try {
-                FileInputStream is = new FileInputStream(f);
-                props.load(is);
-                is.close();
-            } catch (IOException e) {
-                log.warning(e.toString());
-            }
-        }
+    @Deactivate
+    public void deactivate(ComponentContext ctx) {
+        if (tracker != null) tracker.close();
+        tracker = null;
+        dispatchers.clear();
+        RewriteConfigWatcher.release(watcher);
+        watcher = null;
     }
 
     @Override
@@ -71,92 +79,118 @@ public class RewriteServlet extends HttpServlet {
         }
 
         path = path.substring(1);
-        String config = null;
+        String name = null;
         int pos = path.indexOf('/');
         if (pos < 0) {
-            config = path;
+            name = path;
             path = "/";
         } else {
-            config = path.substring(0, pos);
+            name = path.substring(0, pos);
             path = path.substring(pos);
         }
 
-        String servlet = props.getProperty(config + ".servlet");
-
-        log.fine("delegate: " + servlet + " " + path);
+        // the request works with the configuration it started with, also if it's reloaded
+        RewriteConfigWatcher w = watcher;
+        RewriteConfig config = w == null ? null : w.getConfiguration().getConfig(name);
 
-        if (servlet == null) {
+        if (config == null) {
+            log.fine("config not found: " + name);
             res.sendError(404);
             return;
         }
 
-        try {
-            BundleContext bc = FrameworkUtil.getBundle(RewriteServlet.class).getBundleContext();
-            for (ServiceReference<Servlet> ref : bc.getServiceReferences(Servlet.class, null)) {
-                Object alias = ref.getProperty("alias");
-                if (alias != null && String.valueOf(alias).equals(servlet)
-                        || ref.getBundle().getSymbolicName().equals(servlet)) {
-                    Servlet inst = bc.getService(ref);
-
-                    DispatchedHttpServletResponse newResponse =
-                            new DispatchedHttpServletResponse(res);
-                    DispatchedHttpServletRequest newRequest =
-                            new DispatchedHttpServletRequest(path, req);
-                    inst.service(newRequest, newResponse);
-                    String content = newResponse.getContent();
-
-                    log.fine(
-                            "executed: "
-                                    + servlet
-                                    + " "
-                                    + path
-                                    + " "
-                                    + ref.getBundle().getSymbolicName()
-                                    + " "
-                                    + (content == null ? "null" : content.length())
-                                    + " "
-                                    + newResponse.getContentType());
-
-                    if (content == null) {
-                        return;
-                    }
-
-                    for (int cnt = 0; props.getProperty(config + cnt + ".rule") != null; cnt++) {
-                        if (path.matches(props.getProperty(config + cnt + ".path", ".*"))
-                                && newResponse
-                                        .getContentType()
-                                        .matches(
-                                                props.getProperty(
-                                                        config + cnt + ".contentType", ".*")))
-                            content =
-                                    content.replaceAll(
-                                            props.getProperty(config + cnt + ".rule"),
-                                            props.getProperty(config + cnt + ".replace"));
-                    }
-
-                    res.getWriter().write(content);
-
-                    if (props.getProperty(config + ".debug", "").equals("true")) {
-                        log.info("===================");
-                        log.info("Request: " + req.getMethod() + " " + path);
-                        for (Enumeration<String> en = req.getHeaderNames();
-                                en.hasMoreElements(); ) {
-                            String name = en.nextElement();
-                            log.info("Header: " + name + "=" + req.getHeader(name));
-                        }
-                        if (newRequest.getInputBytes() != null)
-                            log.info("In: " + new String(newRequest.getInputBytes()));
-                        log.info("Out: " + content);
-                        log.info("===================");
-                    }
+        Upstream upstream = config.getUpstream();
+        if (upstream != null) {
+            log.fine("proxy: " + upstream.getUrl() + " " + path);
+            try {
+                RewriteCall call = new RewriteCall(config, path, upstream.getUrl(), req, res);
+                if (!call.serveCached()) call.execute(upstream);
+                return;
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            res.setStatus(502);
+            return;
+        }
 
+        String servlet = config.getServlet();
+        log.fine("delegate: " + servlet + " " + path);
+
+        if (config.isDispatcher()) {
+            RequestDispatcher dispatcher = getDispatcher(servlet);
+            if (dispatcher != null) {
+                try {
+                    RewriteCall call = new RewriteCall(config, path, servlet, req, res);
+                    // the container commits the response after a forward, collected content
+                    // must be included, the recorded headers are applied after the rewrite.
+                    // A streamed response is finished if the container closes it
+                    if (!call.serveCached())
+                        call.execute(
+                                config.isStreaming() ? dispatcher::forward : dispatcher::include);
                     return;
+                } catch (Throwable t) {
+                    t.printStackTrace();
                 }
             }
-        } catch (Throwable t) {
-            t.printStackTrace();
+            res.setStatus(404);
+            return;
+        }
+
+        ServletTracker servlets = tracker;
+        ServiceReference<Servlet> ref = servlets == null ? null : servlets.find(servlet);
+        Servlet inst = ref == null ? null : servlets.getServlet(ref);
+        if (inst != null) {
+            try {
+                RewriteCall call =
+                        new RewriteCall(config, path, ref.getBundle().getSymbolicName(), req, res);
+                if (!call.serveCached()) call.execute(inst);
+                return;
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
         }
 
         res.setStatus(404);
     }
+
+    /**
+     * Return the path after the configuration name like it was sent by the client, it's not
+     * decoded. The path is "/" if the request has no path after the name.
+     */
+    public static String toRawPath(HttpServletRequest req) {
+        String uri = req.getRequestURI();
+        // context and servlet path have the same segments raw and decoded, one more for the name
+        int segments = count(req.getContextPath()) + count(req.getServletPath()) + 1;
+        int pos = -1;
+        for (int i = 0; i < segments; i++) {
+            pos = uri.indexOf('/', pos + 1);
+            if (pos < 0) return "/";
+        }
+        pos = uri.indexOf('/', pos + 1);
+        return pos < 0 ? "/" : uri.substring(pos);
+    }
+
+    private static int count(String path) {
+        int count = 0;
+        if (path != null) {
+            for (int i = 0; i < path.length(); i++) if (path.charAt(i) == '/') count++;
+        }
+        return count;
+    }
+
+    // the path info is set by the dispatched request, one dispatcher per alias is enough
+    private RequestDispatcher getDispatcher(String servlet) {
+        if (servlet == null || !servlet.startsWith("/")) {
+            log.warning("dispatcher needs a servlet alias: " + servlet);
+            return null;
+        }
+        RequestDispatcher dispatcher = dispatchers.get(servlet);
+        if (dispatcher == null) {
+            String uri = servlet;
+            if (uri.endsWith("/*")) uri = uri.substring(0, uri.length() - 2);
+            dispatcher = getServletContext().getRequestDispatcher(uri);
+            if (dispatcher != null) dispatchers.put(servlet, dispatcher);
+        }
+        return dispatcher;
+    }
 }
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+/**
+ * One step of the rewrite pipeline. A stage gets a chunk of content and writes the rewritten
+ * part to the output. If the chunk is not the last one the stage can hold back the tail of the
+ * chunk because a match could continue in the next chunk.
+ */
+public interface RewriteStage {
+
+    /**
+     * Rewrite the given content.
+     *
+     * @param in The content to rewrite
+     * @param last true if no more content will follow
+     * @param out The rewritten content
+     * @return The number of characters consumed from the input, all of them if last is true
+     */
+    int process(CharSequence in, boolean last, StringBuilder out);
+
+    /**
+     * Rewrite the content after start. The characters before start are already processed, they
+     * are only the context of the content, e.g. for word boundaries and look-behind.
+     *
+     * @param in The context and the content to rewrite
+     * @param start The start of the content
+     * @param last true if no more content will follow
+     * @param out The rewritten content
+     * @return The number of characters consumed after start, all of them if last is true
+     */
+    default int process(CharSequence in, int start, boolean last, StringBuilder out) {
+        return process(start == 0 ? in : in.subSequence(start, in.length()), last, out);
+    }
+
+    /** Return the number of processed characters the stage needs as context, see process(). */
+    default int getContext() {
+        return 0;
+    }
+}
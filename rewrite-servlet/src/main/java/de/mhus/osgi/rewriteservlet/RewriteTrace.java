@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Debug record of one request. The values are copied on the request thread, the text is created
+ * by the TraceWriter in the background.
+ */
+public class RewriteTrace {
+
+    private final String config;
+    private final String method;
+    private final String path;
+    private final List<String> headers = new ArrayList<>();
+    private final byte[] in;
+    private final String out;
+    private final int maxBody;
+
+    /**
+     * Create the record.
+     *
+     * @param config Name of the configuration
+     * @param path The path of the delegated request
+     * @param req The original request
+     * @param in The captured start of the request body or null
+     * @param out The rewritten content or a short note
+     * @param maxBody Maximum length of the body excerpts
+     */
+    public RewriteTrace(
+            String config,
+            String path,
+            HttpServletRequest req,
+            byte[] in,
+            String out,
+            int maxBody) {
+        this.config = config;
+        this.method = req.getMethod();
+        this.path = path;
+        for (Enumeration<String> en = req.getHeaderNames(); en.hasMoreElements(); ) {
+            String header = en.nextElement();
+            headers.add(header + "=" + req.getHeader(header));
+        }
+        this.in = in;
+        this.out = out == null || out.length() <= maxBody ? out : out.substring(0, maxBody);
+        this.maxBody = maxBody;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("===================\n");
+        sb.append("Request: ").append(config).append(' ');
+        sb.append(method).append(' ').append(path).append('\n');
+        for (String header : headers) sb.append("Header: ").append(header).append('\n');
+        if (in != null)
+            sb.append("In: ").append(new String(in, StandardCharsets.ISO_8859_1)).append('\n');
+        sb.append("Out: ").append(out == null ? "not rewritten" : out);
+        if (out != null && out.length() == maxBody) sb.append("...");
+        sb.append("\n===================");
+        return sb.toString();
+    }
+}
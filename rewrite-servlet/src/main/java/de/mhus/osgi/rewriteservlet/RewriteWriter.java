@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writer pushing the content through a list of rewrite stages. Every stage collects at least
+ * 'window' characters before it is processed. The processed part is written to the target as
+ * soon as possible. Each stage holds at maximum two windows of content and the end of the
+ * processed content as context of the next chunk.
+ */
+public class RewriteWriter extends Writer {
+
+    private final Writer target;
+    private final RewriteStage[] stages;
+    private final StringBuilder[] carry;
+    // count of processed characters at the start of carry
+    private final int[] context;
+    private final int window;
+    private final StringBuilder out = new StringBuilder();
+    private boolean closed;
+    private long count;
+
+    public RewriteWriter(Writer target, List<RewriteStage> stages, int window) {
+        this.target = target;
+        this.stages = stages.toArray(new RewriteStage[stages.size()]);
+        this.window = Math.max(1, window);
+        carry = new StringBuilder[this.stages.length];
+        for (int i = 0; i < carry.length; i++) carry[i] = new StringBuilder();
+        context = new int[this.stages.length];
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (closed) throw new IOException("writer closed");
+        count += len;
+        if (stages.length == 0) {
+            target.write(cbuf, off, len);
+            return;
+        }
+        while (len > 0) {
+            int n = Math.min(len, Math.max(1, window - pending(0)));
+            carry[0].append(cbuf, off, n);
+            off += n;
+            len -= n;
+            if (pending(0) >= window) pump(false);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (closed) throw new IOException("writer closed");
+        count += len;
+        if (stages.length == 0) {
+            target.write(str, off, len);
+            return;
+        }
+        while (len > 0) {
+            int n = Math.min(len, Math.max(1, window - pending(0)));
+            carry[0].append(str, off, off + n);
+            off += n;
+            len -= n;
+            if (pending(0) >= window) pump(false);
+        }
+    }
+
+    private int pending(int stage) {
+        return carry[stage].length() - context[stage];
+    }
+
+    private void pump(boolean last) throws IOException {
+        for (int i = 0; i < stages.length; i++) {
+            StringBuilder in = carry[i];
+            if (!last && pending(i) < window) break;
+            out.setLength(0);
+            int consumed = context[i] + stages[i].process(in, context[i], last, out);
+            // a stage that is not able to consume is forced to keep the heap bounded
+            if (in.length() - consumed >= 2 * window)
+                consumed += stages[i].process(in, consumed, true, out);
+            int keep = Math.min(consumed, stages[i].getContext());
+            in.delete(0, consumed - keep);
+            context[i] = keep;
+            if (i + 1 < stages.length) carry[i + 1].append(out);
+            else target.append(out);
+        }
+    }
+
+    /** Return the count of characters written to the writer. */
+    public long getCount() {
+        return count;
+    }
+
+    /** Flush only the underlying writer, the held back content stays in the pipeline. */
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    /** Process the remaining content and flush the target. The target will not be closed. */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        pump(true);
+        closed = true;
+        target.flush();
+    }
+
+    /** Rewrite the whole content in one step. */
+    public static String rewrite(String content, List<RewriteStage> stages) {
+        StringBuilder out = new StringBuilder();
+        for (RewriteStage stage : stages) {
+            out.setLength(0);
+            stage.process(content, true, out);
+            content = out.toString();
+        }
+        return content;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.Servlet;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Track all servlet services and index them by alias and by the symbolic name of the bundle. Only
+ * the references are tracked, the service of a servlet is requested the first time it's used and
+ * released if the service is unregistered. Lazy components are not activated by the tracker.
+ */
+public class ServletTracker extends ServiceTracker<Servlet, ServiceReference<Servlet>> {
+
+    private final ServiceReference<?> own;
+    private final Set<ServiceReference<Servlet>> references = new HashSet<>();
+    private final ConcurrentHashMap<ServiceReference<Servlet>, Servlet> services =
+            new ConcurrentHashMap<>();
+    private volatile Map<String, ServiceReference<Servlet>> aliases = Collections.emptyMap();
+    private volatile Map<String, ServiceReference<Servlet>> bundles = Collections.emptyMap();
+
+    /**
+     * Create the tracker.
+     *
+     * @param context The bundle context
+     * @param own The reference of the tracking servlet, it's not tracked, can be null
+     */
+    public ServletTracker(BundleContext context, ServiceReference<?> own) {
+        super(context, Servlet.class, null);
+        this.own = own;
+    }
+
+    @Override
+    public ServiceReference<Servlet> addingService(ServiceReference<Servlet> reference) {
+        if (reference.equals(own)) return null;
+        synchronized (this) {
+            references.add(reference);
+            rebuild();
+        }
+        return reference;
+    }
+
+    @Override
+    public synchronized void modifiedService(
+            ServiceReference<Servlet> reference, ServiceReference<Servlet> service) {
+        rebuild();
+    }
+
+    @Override
+    public void removedService(
+            ServiceReference<Servlet> reference, ServiceReference<Servlet> service) {
+        synchronized (this) {
+            references.remove(reference);
+            rebuild();
+            if (services.remove(reference) != null) context.ungetService(reference);
+        }
+    }
+
+    /**
+     * Find the servlet by alias or by the symbolic name of the bundle.
+     *
+     * @param name Alias or symbolic name
+     * @return The reference or null
+     */
+    public ServiceReference<Servlet> find(String name) {
+        ServiceReference<Servlet> ref = aliases.get(name);
+        if (ref == null) ref = bundles.get(name);
+        return ref;
+    }
+
+    /**
+     * Return the servlet of a tracked reference, the service is requested with the first call.
+     *
+     * @param reference The reference returned by find()
+     * @return The servlet or null if it's not tracked or not available
+     */
+    public Servlet getServlet(ServiceReference<Servlet> reference) {
+        Servlet servlet = services.get(reference);
+        if (servlet != null) return servlet;
+        synchronized (this) {
+            // the reference could be removed in the meantime, don't get an untracked service
+            if (!references.contains(reference)) return null;
+            servlet = services.get(reference);
+            if (servlet == null) {
+                servlet = context.getService(reference);
+                if (servlet != null) services.put(reference, servlet);
+            }
+            return servlet;
+        }
+    }
+    // changes are rare, build a new index and swap it, lookups are never locked
+    private void rebuild() {
+        List<ServiceReference<Servlet>> list = new ArrayList<>(references);
+        // the highest ranking wins if a name is used twice
+        Collections.sort(list, Collections.reverseOrder());
+        Map<String, ServiceReference<Servlet>> newAliases = new HashMap<>();
+        Map<String, ServiceReference<Servlet>> newBundles = new HashMap<>();
+        for (ServiceReference<Servlet> ref : list) {
+            Object alias = ref.getProperty("alias");
+            if (alias != null) newAliases.putIfAbsent(String.valueOf(alias), ref);
+            Bundle bundle = ref.getBundle();
+            if (bundle != null && bundle.getSymbolicName() != null)
+                newBundles.putIfAbsent(bundle.getSymbolicName(), ref);
+        }
+        aliases = newAliases;
+        bundles = newBundles;
+    }
+}
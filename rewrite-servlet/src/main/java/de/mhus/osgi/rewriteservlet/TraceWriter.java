@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Write debug records in a background thread. Requests only add the record to a bounded queue, if
+ * the queue is full the record is dropped and counted. The thread waits for records without
+ * polling.
+ */
+public class TraceWriter implements Runnable {
+
+    private static final int MAX_QUEUE = 1024;
+    private static Logger log = Logger.getLogger(TraceWriter.class.getCanonicalName());
+
+    private static final BlockingQueue<RewriteTrace> queue = new LinkedBlockingQueue<>(MAX_QUEUE);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Thread thread;
+
+    /** Add the record to the queue, the writer thread is started with the first record. */
+    public static void add(RewriteTrace trace) {
+        if (thread == null) start();
+        if (!queue.offer(trace)) dropped.increment();
+    }
+
+    private static synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(new TraceWriter(), "rewriteservlet-trace-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Stop the writer thread, the remaining records are written before. */
+    public static synchronized void stop() {
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    /** Return the count of records dropped because the queue was full. */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private TraceWriter() {}
+
+    @Override
+    public void run() {
+        try {
+            while (true) write(queue.take());
+        } catch (InterruptedException e) {
+            RewriteTrace trace;
+            while ((trace = queue.poll()) != null) write(trace);
+        }
+    }
+
+    private static void write(RewriteTrace trace) {
+        try {
+            log.info(trace.toString());
+        } catch (RuntimeException e) {
+            log.fine(e.toString());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Proxy the request to a HTTP server. Connections are kept alive and reused by the JDK, the count
+ * of concurrent requests to the server is limited. Bodies are streamed in both directions.
+ */
+public class Upstream implements RewriteCall.Delegate {
+
+    private static Logger log = Logger.getLogger(Upstream.class.getCanonicalName());
+    private static final int BUFFER_SIZE = 8192;
+    // headers of one connection, they are not passed to the next hop
+    private static final Set<String> HOP_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        HOP_HEADERS.addAll(
+                Arrays.asList(
+                        "Connection",
+                        "Keep-Alive",
+                        "Proxy-Authenticate",
+                        "Proxy-Authorization",
+                        "Proxy-Connection",
+                        "TE",
+                        "Trailer",
+                        "Transfer-Encoding",
+                        "Upgrade",
+                        "Host",
+                        "Content-Length"));
+    }
+
+    private final String url;
+    private final Bulkhead connections;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /**
+     * Create the upstream.
+     *
+     * @param url The base url, the path and query of the request are appended
+     * @param maxConnections Maximum count of concurrent requests
+     * @param connectTimeout Timeout in ms to get a connection
+     * @param readTimeout Timeout in ms waiting for data
+     */
+    public Upstream(String url, int maxConnections, int connectTimeout, int readTimeout) {
+        this(url, null, maxConnections, connectTimeout, readTimeout);
+    }
+
+    /**
+     * Create the upstream and take over the limit of the previous upstream, requests still
+     * executed by the previous upstream are counted by the new one.
+     *
+     * @param url The base url, the path and query of the request are appended
+     * @param previous The upstream of the former configuration or null
+     * @param maxConnections Maximum count of concurrent requests
+     * @param connectTimeout Timeout in ms to get a connection
+     * @param readTimeout Timeout in ms waiting for data
+     */
+    public Upstream(
+            String url,
+            Upstream previous,
+            int maxConnections,
+            int connectTimeout,
+            int readTimeout) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        maxConnections = Math.max(1, maxConnections);
+        if (previous == null) {
+            connections = new Bulkhead(maxConnections, Integer.MAX_VALUE, connectTimeout);
+        } else {
+            connections = previous.connections;
+            connections.resize(maxConnections, Integer.MAX_VALUE, connectTimeout);
+        }
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public void call(ServletRequest request, ServletResponse response)
+            throws ServletException, IOException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse res = (HttpServletResponse) response;
+        if (!connections.acquire()) {
+            if (Thread.currentThread().isInterrupted())
+                throw new IOException("interrupted waiting for a connection");
+            log.fine("no free connection: " + url);
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        try {
+            proxy(req, res);
+        } finally {
+            connections.release();
+        }
+    }
+
+    private void proxy(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        String query = req.getQueryString();
+        // the decoded path info could contain characters not valid in a request line
+        String path = RewriteServlet.toRawPath(req);
+        URL target = new URL(url + path + (query == null ? "" : "?" + query));
+        HttpURLConnection con = (HttpURLConnection) target.openConnection();
+        con.setInstanceFollowRedirects(false);
+        con.setUseCaches(false);
+        con.setConnectTimeout(connectTimeout);
+        con.setReadTimeout(readTimeout);
+        try {
+            con.setRequestMethod(req.getMethod());
+        } catch (ProtocolException e) {
+            res.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+            return;
+        }
+        for (Enumeration<String> en = req.getHeaderNames(); en.hasMoreElements(); ) {
+            String name = en.nextElement();
+            if (HOP_HEADERS.contains(name)) continue;
+            for (Enumeration<String> values = req.getHeaders(name); values.hasMoreElements(); )
+                con.addRequestProperty(name, values.nextElement());
+        }
+        // the client is added to the chain of proxies, host and scheme of the first one win
+        StringBuilder forwarded = new StringBuilder();
+        for (Enumeration<String> values = req.getHeaders("X-Forwarded-For");
+                values.hasMoreElements(); )
+            forwarded.append(values.nextElement()).append(", ");
+        forwarded.append(req.getRemoteAddr());
+        con.setRequestProperty("X-Forwarded-For", forwarded.toString());
+        String host = req.getHeader("Host");
+        if (req.getHeader("X-Forwarded-Host") == null && host != null)
+            con.setRequestProperty("X-Forwarded-Host", host);
+        if (req.getHeader("X-Forwarded-Proto") == null)
+            con.setRequestProperty("X-Forwarded-Proto", req.getScheme());
+
+        try {
+            long length = req.getContentLengthLong();
+            if (length > 0 || req.getHeader("Transfer-Encoding") != null) {
+                con.setDoOutput(true);
+                if (length >= 0) con.setFixedLengthStreamingMode(length);
+                else con.setChunkedStreamingMode(BUFFER_SIZE);
+                try (OutputStream os = con.getOutputStream()) {
+                    copy(req.getInputStream(), os);
+                }
+            }
+
+            int status = con.getResponseCode();
+            res.setStatus(status);
+            for (Map.Entry<String, List<String>> entry : con.getHeaderFields().entrySet()) {
+                String name = entry.getKey();
+                // the status line has no name
+                if (name == null || HOP_HEADERS.contains(name)) continue;
+                if (name.equalsIgnoreCase("Content-Type")) {
+                    res.setContentType(entry.getValue().get(0));
+                    continue;
+                }
+                for (String value : entry.getValue()) res.addHeader(name, value);
+            }
+            long contentLength = con.getContentLengthLong();
+            if (contentLength >= 0) res.setContentLengthLong(contentLength);
+
+            InputStream is = status >= 400 ? con.getErrorStream() : con.getInputStream();
+            if (is != null) {
+                // read to the end, the connection is reused after the stream is closed
+                try (InputStream in = is) {
+                    copy(in, res.getOutputStream());
+                }
+            }
+        } catch (IOException e) {
+            // the state of the connection is unknown, don't reuse it
+            con.disconnect();
+            throw e;
+        }
+    }
+
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = is.read(buffer)) >= 0) os.write(buffer, 0, n);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /** Return the count of free connections. */
+    public int getAvailable() {
+        return Math.max(0, connections.getMaxConcurrent() - connections.getActive());
+    }
+
+    /** Return the limit of concurrent requests, it is shared with the following upstreams. */
+    public Bulkhead getConnections() {
+        return connections;
+    }
+}
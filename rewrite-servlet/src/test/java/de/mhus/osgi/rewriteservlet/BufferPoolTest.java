@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReleaseByOtherThread() throws InterruptedException {
+        long used = ServletMocks.usedSegments();
+        List<ByteBuffer> segments = new ArrayList<>();
+        for (int i = 0; i < 100; i++) segments.add(BufferPool.get());
+        for (ByteBuffer segment : segments) {
+            assertTrue(segment.isDirect());
+            assertEquals(BufferPool.SEGMENT_SIZE, segment.remaining());
+        }
+        assertEquals(used + 100, ServletMocks.usedSegments());
+        // async requests give the segments back in another thread
+        Thread thread = new Thread(() -> segments.forEach(BufferPool::release));
+        thread.start();
+        thread.join();
+        assertEquals(used, ServletMocks.usedSegments());
+    }
+}
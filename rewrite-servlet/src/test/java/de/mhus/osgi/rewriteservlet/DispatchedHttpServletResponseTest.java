@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class DispatchedHttpServletResponseTest {
+
+    // without rules the content is streamed unchanged, the length is valid after the headers
+    @Test
+    public void testLengthAfterStream() throws Exception {
+        ServletMocks.Response res = new ServletMocks.Response();
+        DispatchedHttpServletResponse response = new DispatchedHttpServletResponse(res.proxy);
+        response.setStreaming(contentType -> Collections.emptyList(), 64);
+        response.getOutputStream();
+        response.setContentLength(5);
+        assertEquals("5", res.headers.get("Content-Length"));
+        response.setContentLengthLong(6);
+        assertEquals("6", res.headers.get("Content-Length"));
+        response.setHeader("Content-Length", "7");
+        assertEquals("7", res.headers.get("Content-Length"));
+    }
+
+    // the length of the servlet is not valid for rewritten content
+    @Test
+    public void testLengthOfRewrittenStream() throws Exception {
+        ServletMocks.Response res = new ServletMocks.Response();
+        DispatchedHttpServletResponse response = new DispatchedHttpServletResponse(res.proxy);
+        RewriteStage stage = new RegexStage(Pattern.compile("a"), "bb", 4);
+        response.setStreaming(contentType -> Collections.singletonList(stage), 64);
+        response.getOutputStream();
+        response.setContentLength(5);
+        assertNull(res.headers.get("Content-Length"));
+    }
+
+    @Test
+    public void testStreamedWriter() throws Exception {
+        ServletMocks.Response res = new ServletMocks.Response();
+        DispatchedHttpServletResponse response = new DispatchedHttpServletResponse(res.proxy);
+        RewriteStage stage = new RegexStage(Pattern.compile("a"), "bb", 4);
+        response.setStreaming(contentType -> Collections.singletonList(stage), 64);
+        PrintWriter writer = response.getWriter();
+        writer.print("abc");
+        writer.write('a');
+        writer.close();
+        assertEquals(4, response.getStreamedBytesIn());
+        assertEquals("bbbcbb", res.content.toString("ISO-8859-1"));
+        assertEquals(6, response.getStreamedBytesOut());
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class RewriteCallTest {
+
+    private static final byte[] CONTENT = new byte[3 * BufferPool.SEGMENT_SIZE];
+
+    static {
+        Arrays.fill(CONTENT, (byte) 'x');
+    }
+
+    // the dispatched target writes unchanged, the call holds no buffers and permits
+    @Test
+    public void testAsyncDispatch() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(1, 0, 0);
+        RewriteConfig config = ServletMocks.config("test-dispatch", false, bulkhead);
+        ServletMocks.Request req = new ServletMocks.Request();
+        ServletMocks.Response res = new ServletMocks.Response();
+        long used = ServletMocks.usedSegments();
+        RewriteCall call = new RewriteCall(config, "/a", "/a", req.proxy, res.proxy);
+        call.execute(
+                (r, s) -> {
+                    s.getOutputStream().write(CONTENT);
+                    r.startAsync().dispatch();
+                });
+        assertEquals(1, req.dispatched);
+        assertEquals(0, bulkhead.getActive());
+        assertEquals(used, ServletMocks.usedSegments());
+        assertEquals(0, res.content.size());
+        // the container completes the dispatched request
+        req.complete();
+        assertEquals(0, bulkhead.getActive());
+        assertEquals(used, ServletMocks.usedSegments());
+    }
+
+    // the content written by the dispatched target is not collected
+    @Test
+    public void testWriteAfterDispatch() throws Exception {
+        RewriteConfig config = ServletMocks.config("test-dispatch-write", false, null);
+        ServletMocks.Request req = new ServletMocks.Request();
+        ServletMocks.Response res = new ServletMocks.Response();
+        long used = ServletMocks.usedSegments();
+        RewriteCall call = new RewriteCall(config, "/a", "/a", req.proxy, res.proxy);
+        OutputStream[] out = new OutputStream[1];
+        call.execute(
+                (r, s) -> {
+                    out[0] = s.getOutputStream();
+                    out[0].write(CONTENT);
+                    r.startAsync().dispatch();
+                });
+        out[0].write(CONTENT);
+        assertEquals(used, ServletMocks.usedSegments());
+        assertEquals(CONTENT.length, res.content.size());
+    }
+
+    // the container completes the request without complete() of the servlet
+    @Test
+    public void testAsyncCompletedByContainer() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(1, 0, 0);
+        RewriteConfig config = ServletMocks.config("test-complete", false, bulkhead);
+        ServletMocks.Request req = new ServletMocks.Request();
+        ServletMocks.Response res = new ServletMocks.Response();
+        long used = ServletMocks.usedSegments();
+        RewriteCall call = new RewriteCall(config, "/a", "/a", req.proxy, res.proxy);
+        call.execute(
+                (r, s) -> {
+                    s.getOutputStream().write(CONTENT);
+                    r.startAsync();
+                });
+        assertEquals(1, bulkhead.getActive());
+        req.complete();
+        assertEquals(0, bulkhead.getActive());
+        assertEquals(used, ServletMocks.usedSegments());
+        assertEquals(CONTENT.length, res.content.size());
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+
+public class RewriteConfigurationTest {
+
+    private static Properties props(int maxConcurrent, int maxConnections) {
+        Properties props = new Properties();
+        props.setProperty("test.servlet", "/test");
+        props.setProperty("test.maxConcurrent", String.valueOf(maxConcurrent));
+        props.setProperty("test.queueTimeout", "0");
+        props.setProperty("proxy.upstream", "http://localhost:8080");
+        props.setProperty("proxy.upstreamMaxConnections", String.valueOf(maxConnections));
+        return props;
+    }
+
+    @Test
+    public void testBulkheadKeptOnReload() {
+        RewriteConfiguration first = new RewriteConfiguration(props(2, 2));
+        Bulkhead bulkhead = first.getConfig("test").getBulkhead();
+        assertTrue(bulkhead.acquire());
+        assertTrue(bulkhead.acquire());
+
+        RewriteConfiguration second = new RewriteConfiguration(props(1, 2), first);
+        assertSame(bulkhead, second.getConfig("test").getBulkhead());
+        assertEquals(1, bulkhead.getMaxConcurrent());
+        // the requests of the first configuration still hold their permits
+        assertEquals(2, bulkhead.getActive());
+        bulkhead.release();
+        assertFalse(bulkhead.acquire());
+        bulkhead.release();
+        assertTrue(bulkhead.acquire());
+        bulkhead.release();
+
+        RewriteConfiguration third = new RewriteConfiguration(props(3, 2), second);
+        assertSame(bulkhead, third.getConfig("test").getBulkhead());
+        assertTrue(bulkhead.acquire());
+        assertTrue(bulkhead.acquire());
+        assertTrue(bulkhead.acquire());
+        assertFalse(bulkhead.acquire());
+    }
+
+    @Test
+    public void testUpstreamLimitKeptOnReload() {
+        RewriteConfiguration first = new RewriteConfiguration(props(1, 2));
+        Upstream upstream = first.getConfig("proxy").getUpstream();
+        assertTrue(upstream.getConnections().acquire());
+
+        RewriteConfiguration second = new RewriteConfiguration(props(1, 1), first);
+        Upstream next = second.getConfig("proxy").getUpstream();
+        assertNotSame(upstream, next);
+        assertSame(upstream.getConnections(), next.getConnections());
+        assertEquals(0, next.getAvailable());
+        upstream.getConnections().release();
+        assertEquals(1, next.getAvailable());
+
+        RewriteConfiguration fresh = new RewriteConfiguration(props(1, 1));
+        assertNotSame(
+                upstream.getConnections(), fresh.getConfig("proxy").getUpstream().getConnections());
+    }
+}
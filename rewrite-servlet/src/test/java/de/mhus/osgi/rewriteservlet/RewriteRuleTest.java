@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class RewriteRuleTest {
+
+    private static String anchor(String regex) {
+        return RewriteRule.toAnchor(Pattern.compile(regex));
+    }
+
+    private static String literal(String regex) {
+        return RewriteRule.toLiteral(Pattern.compile(regex));
+    }
+
+    private static String prefix(String regex) {
+        return RewriteRule.toPrefix(Pattern.compile(regex));
+    }
+
+    @Test
+    public void testAnchor() {
+        assertEquals("href=\"/app/", anchor("href=\"/app/([a-z]+)\""));
+        assertEquals("a.b", anchor("x*\\Qa.b\\E"));
+        assertEquals("abc", anchor("[xy]abc\\d"));
+        assertEquals("abc", anchor("abcd?"));
+        assertEquals("abc", anchor("abcd{0,2}"));
+        assertEquals("foo", anchor("foo(bar)?"));
+        assertNull(anchor("foo|bar"));
+        assertNull(anchor("(?i)foo"));
+        assertNull(anchor("a?"));
+        assertNull(anchor("[abc]+"));
+    }
+
+    @Test
+    public void testAnchorEscapes() {
+        // the rest of a character code is not plain text
+        assertEquals("barx", anchor("foo\\x41barx"));
+        assertEquals("foo", anchor("foo\\x{41}ba"));
+        assertEquals("cd", anchor("a\\u0042cd"));
+        assertEquals("foo", anchor("foo\\0101ba"));
+        assertEquals("ab", anchor("ab\\cAcd"));
+        assertEquals("yy", anchor("x\\p{L}yy"));
+        assertEquals("yy", anchor("x\\pLyy"));
+        assertEquals("x", anchor("(?<q>[\"'])x\\k<q>"));
+        assertEquals("ab", anchor("(a)ab\\12"));
+        assertEquals("ab", anchor("[\\Q]\\E]ab"));
+    }
+
+    @Test
+    public void testLiteral() {
+        assertEquals("a.b", literal("a\\.b"));
+        assertEquals("a.b*", literal("\\Qa.b*\\E"));
+        assertEquals("<div>", literal("<div>"));
+        assertNull(literal("a.b"));
+        assertNull(literal("ab?"));
+        assertNull(literal("foo\\x41bar"));
+        assertNull(literal("a\\u0042"));
+        assertNull(literal("a\\d"));
+        assertNull(literal("a|b"));
+        assertNull(RewriteRule.toLiteral(Pattern.compile("abc", Pattern.CASE_INSENSITIVE)));
+    }
+
+    @Test
+    public void testPrefix() {
+        assertEquals("/static/", prefix("/static/.*\\.html"));
+        assertEquals("/static/", prefix("^/static/.*"));
+        assertEquals("/a.b/", prefix("/a\\.b/.*"));
+        assertEquals("/ab", prefix("/abc?/.*"));
+        assertEquals("/foo", prefix("/foo\\x41bar"));
+        assertEquals("/a", prefix("/a\\u0042"));
+        assertEquals("", prefix("/a|/b"));
+        assertEquals("", prefix(".*"));
+        assertEquals("", RewriteRule.toPrefix(null));
+    }
+
+    @Test
+    public void testPlanWithEscapes() {
+        RegexStage stage = new RegexStage(Pattern.compile("foo\\x41bar"), "X", 1024);
+        RewritePlan plan =
+                new RewritePlan(Arrays.asList(new RewriteRule(0, null, null, stage)));
+        assertEquals("-X-", plan.rewrite("-fooAbar-"));
+    }
+
+    // every match must contain the anchor, a literal is found exactly where the regex matches
+    @Test
+    public void testRandomPatterns() {
+        String[] tokens = {
+            "a", "b", "A", "0", "foo", "\\x41", "\\x{42}", "\\u0043", "\\0101", "\\cA", "\\d",
+            "\\w", "\\b", "\\.", "\\Qa.b\\E", "[ab]", "[\\Q]\\E]", "(a)", "(?:ab)", "(?<q>a)",
+            "\\k<q>", "\\1", "\\p{L}", "\\pL", "?", "*", "+", "{2}", "{0,2}", ".", "|", "\\t"
+        };
+        String[] chars = {"a", "b", "A", "B", "C", "0", "1", "f", "o", ".", "]", "\t", "\u0001"};
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder regex = new StringBuilder();
+            for (int j = random.nextInt(6); j >= 0; j--)
+                regex.append(tokens[random.nextInt(tokens.length)]);
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(regex.toString());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            String anchor = RewriteRule.toAnchor(pattern);
+            String literal = RewriteRule.toLiteral(pattern);
+            String prefix = RewriteRule.toPrefix(pattern);
+            for (int k = 0; k < 20; k++) {
+                StringBuilder text = new StringBuilder();
+                for (int j = random.nextInt(10); j > 0; j--)
+                    text.append(chars[random.nextInt(chars.length)]);
+                if (k % 2 == 0) text.insert(random.nextInt(text.length() + 1), "AAfooBC\u0001");
+                String content = text.toString();
+                boolean found = pattern.matcher(content).find();
+                if (found && anchor != null)
+                    assertTrue(content.contains(anchor), pattern + " anchor " + anchor);
+                if (literal != null)
+                    assertEquals(found, content.contains(literal), pattern + " literal");
+                if (pattern.matcher(content).matches())
+                    assertTrue(content.startsWith(prefix), pattern + " prefix " + prefix);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class RewriteWriterTest {
+
+    // the window should not be smaller than the overlap, see RewriteWriter.pump()
+    private static final int OVERLAP = 4;
+
+    private static String stream(String content, List<RewriteStage> stages, int window, int chunk)
+            throws Exception {
+        StringWriter out = new StringWriter();
+        try (RewriteWriter writer = new RewriteWriter(out, stages, window)) {
+            for (int pos = 0; pos < content.length(); pos += chunk)
+                writer.write(content, pos, Math.min(chunk, content.length() - pos));
+        }
+        return out.toString();
+    }
+
+    private static List<RewriteStage> stages(String... rules) {
+        List<RewriteStage> res = new ArrayList<>();
+        for (int i = 0; i < rules.length; i += 2)
+            res.add(new RegexStage(Pattern.compile(rules[i]), rules[i + 1], OVERLAP));
+        return res;
+    }
+
+    // the word 'cat' starts at the chunk boundary of 'concat'
+    @Test
+    public void testWordBoundary() throws Exception {
+        List<RewriteStage> stages = stages("\\bcat\\b", "dog");
+        String content = "concat cat";
+        String buffered = RewriteWriter.rewrite(content, stages);
+        assertEquals("concat dog", buffered);
+        for (int window = OVERLAP; window <= content.length(); window++)
+            assertEquals(buffered, stream(content, stages, window, 1), "window " + window);
+    }
+
+    // streaming and buffered mode return the same content for rules depending on the context
+    @Test
+    public void testContextRules() throws Exception {
+        List<List<RewriteStage>> list =
+                Arrays.asList(
+                        stages("\\bab\\b", "X"),
+                        stages("\\Bab", "X"),
+                        stages("(?<=a)b", "X"),
+                        stages("(?<!b)a", "X"),
+                        stages("^a", "X"),
+                        stages("\\bb", "a", "\\ba", "X"));
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = random.nextInt(40); j > 0; j--)
+                text.append(" ab".charAt(random.nextInt(3)));
+            String content = text.toString();
+            for (List<RewriteStage> stages : list) {
+                String buffered = RewriteWriter.rewrite(content, stages);
+                int window = OVERLAP + random.nextInt(10);
+                int chunk = 1 + random.nextInt(10);
+                assertEquals(
+                        buffered,
+                        stream(content, stages, window, chunk),
+                        content + " " + ((RegexStage) stages.get(0)).getPattern());
+            }
+        }
+    }
+}
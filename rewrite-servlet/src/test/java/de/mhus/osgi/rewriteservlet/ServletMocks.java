@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.rewriteservlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Minimal request and response of a container for the tests. */
+class ServletMocks {
+
+    /** The request, it records the async listeners and dispatches. */
+    static class Request implements InvocationHandler {
+
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final List<AsyncListener> listeners = new ArrayList<>();
+        int dispatched;
+        AsyncContext async;
+        final HttpServletRequest proxy =
+                (HttpServletRequest)
+                        Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] {HttpServletRequest.class},
+                                this);
+
+        /** Complete the async context like the container, the listeners are notified. */
+        void complete() throws IOException {
+            for (AsyncListener listener : new ArrayList<>(listeners))
+                listener.onComplete(new AsyncEvent(async));
+        }
+
+        @Override
+        public Object invoke(Object p, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getMethod":
+                    return "GET";
+                case "getHeader":
+                    return headers.get(args[0]);
+                case "startAsync":
+                    async =
+                            (AsyncContext)
+                                    Proxy.newProxyInstance(
+                                            getClass().getClassLoader(),
+                                            new Class<?>[] {AsyncContext.class},
+                                            this::invokeAsync);
+                    return async;
+                default:
+                    return defaultValue(method);
+            }
+        }
+
+        private Object invokeAsync(Object p, Method method, Object[] args) throws IOException {
+            switch (method.getName()) {
+                case "addListener":
+                    listeners.add((AsyncListener) args[0]);
+                    return null;
+                case "dispatch":
+                    dispatched++;
+                    return null;
+                case "complete":
+                    complete();
+                    return null;
+                default:
+                    return defaultValue(method);
+            }
+        }
+    }
+
+    /** The response, it records the headers and the content. */
+    static class Response implements InvocationHandler {
+
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int status = 200;
+        final ServletOutputStream out =
+                new ServletOutputStream() {
+
+                    @Override
+                    public void write(int b) {
+                        content.write(b);
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {}
+                };
+        final HttpServletResponse proxy =
+                (HttpServletResponse)
+                        Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] {HttpServletResponse.class},
+                                this);
+
+        @Override
+        public Object invoke(Object p, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getOutputStream":
+                    return out;
+                case "setHeader":
+                case "addHeader":
+                    headers.put((String) args[0], (String) args[1]);
+                    return null;
+                case "getHeader":
+                    return headers.get(args[0]);
+                case "containsHeader":
+                    return headers.containsKey(args[0]);
+                case "setContentType":
+                    headers.put("Content-Type", (String) args[0]);
+                    return null;
+                case "setContentLength":
+                case "setContentLengthLong":
+                    headers.put("Content-Length", String.valueOf(args[0]));
+                    return null;
+                case "setStatus":
+                    status = (Integer) args[0];
+                    return null;
+                case "getStatus":
+                    return status;
+                default:
+                    return defaultValue(method);
+            }
+        }
+    }
+
+    static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+    /** Return the count of direct segments given out by the pool. */
+    static long usedSegments() {
+        return BufferPool.getAllocated() / BufferPool.SEGMENT_SIZE - BufferPool.getPooled();
+    }
+
+    /** Create a configuration without rules. */
+    static RewriteConfig config(String name, boolean streaming, Bulkhead bulkhead) {
+        return new RewriteConfig(
+                name,
+                "servlet",
+                false,
+                null,
+                false,
+                0,
+                0,
+                streaming,
+                4096,
+                256,
+                0,
+                new ArrayList<>(),
+                null,
+                bulkhead);
+    }
+}